@@ -24,29 +24,46 @@ import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitScheduler;
+import uk.org.whoami.authme.cache.auth.AuthState;
+import uk.org.whoami.authme.cache.auth.AuthStateCache;
 import uk.org.whoami.authme.cache.auth.PlayerAuth;
 import uk.org.whoami.authme.cache.auth.PlayerCache;
 import uk.org.whoami.authme.cache.limbo.LimboCache;
+import uk.org.whoami.authme.citizens.CitizensCommunicator;
 import uk.org.whoami.authme.commands.*;
+import uk.org.whoami.authme.datasource.AsyncDataSource;
+import uk.org.whoami.authme.datasource.BinaryDataSource;
 import uk.org.whoami.authme.datasource.CacheDataSource;
+import uk.org.whoami.authme.datasource.CircuitBreaker;
+import uk.org.whoami.authme.datasource.ChangeLog;
 import uk.org.whoami.authme.datasource.DataSource;
+import uk.org.whoami.authme.datasource.DataSourceException;
+import uk.org.whoami.authme.datasource.FallbackDataSource;
 import uk.org.whoami.authme.datasource.FileDataSource;
 import uk.org.whoami.authme.datasource.MiniConnectionPoolManager.TimeoutException;
 import uk.org.whoami.authme.datasource.MySQLDataSource;
+import uk.org.whoami.authme.datasource.SQLiteDataSource;
 import uk.org.whoami.authme.listener.*;
 import uk.org.whoami.authme.settings.Messages;
 import uk.org.whoami.authme.settings.Settings;
+import uk.org.whoami.authme.task.CacheInvalidationTask;
 import uk.org.whoami.authme.task.MessageTask;
 import uk.org.whoami.authme.task.TimeoutTask;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 public class AuthMe extends JavaPlugin {
 
     private Logger log;
     private DataSource database;
+    private AsyncDataSource asyncDatabase;
+    private CircuitBreaker circuitBreaker;
+    private int invalidationTaskId = -1;
+    private int replayTaskId = -1;
     private Settings settings;
     private Messages m;
     private boolean isUUIDCoreEnabled;
@@ -69,9 +86,42 @@ public class AuthMe extends JavaPlugin {
                     return;
                 }
                 break;
+            case BINARY:
+                try {
+                    database = new BinaryDataSource();
+                } catch (IOException ex) {
+                    ConsoleLogger.showError(ex.getMessage());
+                    this.getServer().getPluginManager().disablePlugin(this);
+                    return;
+                }
+                break;
             case MYSQL:
                 try {
-                    database = new MySQLDataSource();
+                    MySQLDataSource mysql = new MySQLDataSource();
+                    circuitBreaker = mysql.getCircuitBreaker();
+                    database = mysql;
+                    if (settings.isMySQLLocalReplicaEnabled()) {
+                        final FallbackDataSource fallback = new FallbackDataSource(mysql);
+                        replayTaskId = getServer().getScheduler().scheduleAsyncRepeatingTask(this, new Runnable() {
+
+                            @Override
+                            public void run() {
+                                final List<String> conflicting = new ArrayList<String>();
+                                fallback.replay(conflicting);
+                                if (conflicting.isEmpty()) {
+                                    return;
+                                }
+                                getServer().getScheduler().scheduleSyncDelayedTask(AuthMe.this, new Runnable() {
+
+                                    @Override
+                                    public void run() {
+                                        resolveConflicts(fallback, conflicting);
+                                    }
+                                });
+                            }
+                        }, 20, 20);
+                        database = fallback;
+                    }
                 } catch (ClassNotFoundException ex) {
                     ConsoleLogger.showError(ex.getMessage());
                     this.getServer().getPluginManager().disablePlugin(this);
@@ -84,13 +134,48 @@ public class AuthMe extends JavaPlugin {
                     ConsoleLogger.showError(ex.getMessage());
                     this.getServer().getPluginManager().disablePlugin(this);
                     return;
+                } catch (IOException ex) {
+                    ConsoleLogger.showError(ex.getMessage());
+                    this.getServer().getPluginManager().disablePlugin(this);
+                    return;
+                }
+                break;
+            case SQLITE:
+                try {
+                    database = new SQLiteDataSource();
+                } catch (ClassNotFoundException ex) {
+                    ConsoleLogger.showError(ex.getMessage());
+                    this.getServer().getPluginManager().disablePlugin(this);
+                    return;
+                } catch (SQLException ex) {
+                    ConsoleLogger.showError(ex.getMessage());
+                    this.getServer().getPluginManager().disablePlugin(this);
+                    return;
                 }
                 break;
         }
 
         if (settings.isCachingEnabled()) {
-            database = new CacheDataSource(database);
+            CacheDataSource cache = new CacheDataSource(database, settings.getCacheSize(), settings.getCacheTTL(),
+                    settings.getCacheNegativeTTL());
+            boolean shared = database instanceof ChangeLog;
+            boolean invalidation = shared && settings.isCacheInvalidationEnabled();
+            if (settings.isCacheBloomFilterEnabled()) {
+                // Other servers register names the filter would never see
+                if (!shared || invalidation) {
+                    cache.loadNames();
+                } else {
+                    ConsoleLogger.showError("The Bloom filter needs cache invalidation on a shared database, not enabled");
+                }
+            }
+            if (invalidation) {
+                long period = Math.max(1, settings.getCacheInvalidationInterval() / 50);
+                invalidationTaskId = getServer().getScheduler().scheduleAsyncRepeatingTask(this,
+                        new CacheInvalidationTask((ChangeLog) database, cache), period, period);
+            }
+            database = cache;
         }
+        asyncDatabase = new AsyncDataSource(this, database, settings.getIOThreads(), settings.getIOQueueSize());
         PluginManager pm = Bukkit.getServer().getPluginManager();
 
         if (settings.isBetaEvolutionsSupportModeEnabled()) {
@@ -115,9 +200,9 @@ public class AuthMe extends JavaPlugin {
         }
 
 
-        AuthMePlayerListener playerListener = new AuthMePlayerListener(this, database);
-        AuthMeBlockListener blockListener = new AuthMeBlockListener(database);
-        AuthMeEntityListener entityListener = new AuthMeEntityListener(database);
+        AuthMePlayerListener playerListener = new AuthMePlayerListener(this, database, asyncDatabase);
+        AuthMeBlockListener blockListener = new AuthMeBlockListener();
+        AuthMeEntityListener entityListener = new AuthMeEntityListener();
         AuthMeCustomListener customListener = new AuthMeCustomListener(this);
 
         pm.registerEvent(Event.Type.CUSTOM_EVENT, customListener,
@@ -158,10 +243,10 @@ public class AuthMe extends JavaPlugin {
         pm.registerEvent(Event.Type.ENTITY_TARGET, entityListener,
                 Priority.Lowest, this);
 
-        this.getCommand("authme").setExecutor(new AdminCommand(database));
-        this.getCommand("register").setExecutor(new RegisterCommand(this, database));
-        this.getCommand("login").setExecutor(new LoginCommand(database));
-        this.getCommand("changepassword").setExecutor(new ChangePasswordCommand(database));
+        this.getCommand("authme").setExecutor(new AdminCommand(database, asyncDatabase, circuitBreaker));
+        this.getCommand("register").setExecutor(new RegisterCommand(this, asyncDatabase));
+        this.getCommand("login").setExecutor(new LoginCommand(asyncDatabase));
+        this.getCommand("changepassword").setExecutor(new ChangePasswordCommand(asyncDatabase));
         this.getCommand("logout").setExecutor(new LogoutCommand(this, database));
         this.getCommand("unregister").setExecutor(new UnregisterCommand(this, database));
 
@@ -170,8 +255,33 @@ public class AuthMe extends JavaPlugin {
     }
 
 
+    // The outage registrations of these names were dropped on replay, so
+    // whoever is logged in with one has to go before the name takes writes
+    // again.
+    private void resolveConflicts(FallbackDataSource fallback, List<String> names) {
+        for (String name : names) {
+            if (database instanceof CacheDataSource) {
+                ((CacheDataSource) database).invalidate(name);
+            }
+            Player player = getServer().getPlayer(name);
+            if (player != null && player.getName().equalsIgnoreCase(name)) {
+                player.kickPlayer(m._("reg_conflict"));
+            }
+            fallback.resolveConflict(name);
+        }
+    }
+
     @Override
     public void onDisable() {
+        if (invalidationTaskId != -1) {
+            getServer().getScheduler().cancelTask(invalidationTaskId);
+        }
+        if (replayTaskId != -1) {
+            getServer().getScheduler().cancelTask(replayTaskId);
+        }
+        if (asyncDatabase != null) {
+            asyncDatabase.shutdown();
+        }
         if (database != null) {
             database.close();
         }
@@ -196,22 +306,38 @@ public class AuthMe extends JavaPlugin {
             String name = player.getName().toLowerCase();
             String ip = player.getAddress().getAddress().getHostAddress();
 
-            boolean authAvail = database.isAuthAvailable(name);
+            if (CitizensCommunicator.isNPC(player)) {
+                continue;
+            }
+
+            PlayerAuth auth;
+            try {
+                auth = database.getAuth(name);
+            } catch (DataSourceException ex) {
+                // Cannot tell whether they have to log in
+                player.kickPlayer(m._("error"));
+                continue;
+            }
+            boolean authAvail = auth != null;
 
             if (authAvail) {
+                AuthStateCache.getInstance().setState(player, AuthState.MUST_LOGIN);
                 if (settings.isSessionsEnabled()) {
-                    PlayerAuth auth = database.getAuth(name);
                     if (auth.getNickname().equals(name) && auth.getIp().equals(ip)) {
                         PlayerCache.getInstance().addPlayer(auth);
+                        AuthStateCache.getInstance().setState(player, AuthState.AUTHENTICATED);
                         player.sendMessage(m._("valid_session"));
-                        break;
+                        continue;
                     }
                 }
-            } else if (!settings.isForcedRegistrationEnabled()) {
-                break;
-            } else if (settings.isKickNonRegisteredEnabled()) {
-                player.kickPlayer(m._("reg_only"));
-                break;
+            } else {
+                AuthStateCache.getInstance().setState(player, AuthState.unregistered());
+                if (!settings.isForcedRegistrationEnabled()) {
+                    continue;
+                } else if (settings.isKickNonRegisteredEnabled()) {
+                    player.kickPlayer(m._("reg_only"));
+                    continue;
+                }
             }
 
             LimboCache.getInstance().addLimboPlayer(player);
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.cache.auth;
+
+import uk.org.whoami.authme.settings.Settings;
+
+/**
+ * What a player is allowed to do, decided when the player joins, logs in,
+ * logs out, registers or unregisters so event handlers do not have to ask
+ * the data source.
+ */
+public enum AuthState {
+
+    /** Not registered and registration is optional */
+    FREE(false),
+    /** Not registered and registration is forced */
+    MUST_REGISTER(true),
+    /** Registered but not logged in, or the account lookup is still running */
+    MUST_LOGIN(true),
+    AUTHENTICATED(false);
+
+    private final boolean restricted;
+
+    AuthState(boolean restricted) {
+        this.restricted = restricted;
+    }
+
+    public boolean isRestricted() {
+        return restricted;
+    }
+
+    public static AuthState unregistered() {
+        return Settings.getInstance().isForcedRegistrationEnabled() ? MUST_REGISTER : FREE;
+    }
+}
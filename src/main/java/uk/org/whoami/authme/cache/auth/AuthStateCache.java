@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.cache.auth;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Holds the {@link AuthState} of every online player by entity id. Players
+ * without a state, such as NPCs, are not restricted.
+ */
+public class AuthStateCache {
+
+    private static final AuthStateCache singleton = new AuthStateCache();
+    private final ConcurrentHashMap<Integer, AuthState> states = new ConcurrentHashMap<Integer, AuthState>();
+
+    private AuthStateCache() {
+    }
+
+    public void setState(Player player, AuthState state) {
+        states.put(player.getEntityId(), state);
+    }
+
+    public AuthState getState(Player player) {
+        return states.get(player.getEntityId());
+    }
+
+    public boolean isRestricted(Player player) {
+        AuthState state = states.get(player.getEntityId());
+        return state != null && state.isRestricted();
+    }
+
+    public void removePlayer(Player player) {
+        states.remove(player.getEntityId());
+    }
+
+    public void clear() {
+        states.clear();
+    }
+
+    public static AuthStateCache getInstance() {
+        return singleton;
+    }
+}
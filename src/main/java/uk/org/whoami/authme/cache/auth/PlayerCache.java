@@ -16,15 +16,14 @@
 
 package uk.org.whoami.authme.cache.auth;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PlayerCache {
 
-    private static PlayerCache singleton = null;
-    private HashMap<String, PlayerAuth> cache;
+    private static final PlayerCache singleton = new PlayerCache();
+    private final ConcurrentHashMap<String, PlayerAuth> cache = new ConcurrentHashMap<String, PlayerAuth>();
 
     private PlayerCache() {
-        cache = new HashMap<String, PlayerAuth>();
     }
 
     public void addPlayer(PlayerAuth auth) {
@@ -32,7 +31,6 @@ public class PlayerCache {
     }
 
     public void updatePlayer(PlayerAuth auth) {
-        cache.remove(auth.getNickname());
         cache.put(auth.getNickname(), auth);
     }
 
@@ -49,9 +47,6 @@ public class PlayerCache {
     }
 
     public static PlayerCache getInstance() {
-        if (singleton == null) {
-            singleton = new PlayerCache();
-        }
         return singleton;
     }
 }
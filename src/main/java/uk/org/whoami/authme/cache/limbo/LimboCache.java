@@ -16,19 +16,21 @@
 
 package uk.org.whoami.authme.cache.limbo;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.bukkit.Location;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 
+import uk.org.whoami.authme.settings.Settings;
+
 public class LimboCache {
 
-    private static LimboCache singleton = null;
-    private HashMap<String, LimboPlayer> cache;
+    private static final LimboCache singleton = new LimboCache();
+    private final ConcurrentHashMap<String, LimboPlayer> cache = new ConcurrentHashMap<String, LimboPlayer>();
+    private final ConcurrentHashMap<Integer, LimboPlayer> byEntity = new ConcurrentHashMap<Integer, LimboPlayer>();
 
     private LimboCache() {
-        this.cache = new HashMap<String, LimboPlayer>();
     }
 
     public void addLimboPlayer(Player player) {
@@ -38,25 +40,41 @@ public class LimboCache {
         ItemStack[] arm = player.getInventory().getArmorContents();
         //int gameMode = player.getGameMode().getValue();
 
-        cache.put(player.getName().toLowerCase(), new LimboPlayer(name, loc, inv, arm));
+        Settings settings = Settings.getInstance();
+        LimboPlayer limbo = new LimboPlayer(name, player.getEntityId(), loc, inv, arm,
+                settings.isMovementAllowed(), settings.getMovementRadius());
+        LimboPlayer old = cache.put(name, limbo);
+        // Replaced before the old entry goes, so a lookup by entity id
+        // never misses a player that rejoins with the same entity
+        byEntity.put(limbo.getEntityId(), limbo);
+        if (old != null) {
+            byEntity.remove(old.getEntityId(), old);
+        }
     }
 
     public void deleteLimboPlayer(String name) {
-        cache.remove(name);
+        LimboPlayer limbo = cache.remove(name);
+        if (limbo != null) {
+            byEntity.remove(limbo.getEntityId(), limbo);
+        }
     }
 
     public LimboPlayer getLimboPlayer(String name) {
         return cache.get(name);
     }
 
+    /**
+     * Looks the player up by entity id, which needs no name conversion.
+     */
+    public LimboPlayer getLimboPlayer(Player player) {
+        return byEntity.get(player.getEntityId());
+    }
+
     public boolean hasLimboPlayer(String name) {
         return cache.containsKey(name);
     }
 
     public static LimboCache getInstance() {
-        if (singleton == null) {
-            singleton = new LimboCache();
-        }
         return singleton;
     }
 }
@@ -17,6 +17,7 @@
 package uk.org.whoami.authme.cache.limbo;
 
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.inventory.ItemStack;
 
 public class LimboPlayer {
@@ -27,13 +28,90 @@ public class LimboPlayer {
     private Location loc;
     private int timeoutTaskId = -1;
     private int gameMode = 0;
+    private int entityId;
+    // Movement rules for unregistered players, fixed when the player
+    // enters limbo so move events do not have to read the settings
+    private boolean movementAllowed;
+    private int radius;
+    private World boundsWorld;
+    private double minX, maxX, minY, maxY, minZ, maxZ;
+    private Location anchor;
+    private long lastCorrection;
 
-    public LimboPlayer(String name, Location loc, ItemStack[] inventory, ItemStack[] armour) {
+    public LimboPlayer(String name, int entityId, Location loc, ItemStack[] inventory, ItemStack[] armour,
+            boolean movementAllowed, int radius) {
         this.name = name;
+        this.entityId = entityId;
         this.loc = loc;
         this.inventory = inventory;
         this.armour = armour;
         this.gameMode = gameMode;
+        this.movementAllowed = movementAllowed;
+        this.radius = radius;
+        if (movementAllowed && radius > 0) {
+            setBounds(loc.getWorld());
+        }
+    }
+
+    private void setBounds(World world) {
+        Location spawn = world.getSpawnLocation();
+        boundsWorld = world;
+        minX = spawn.getX() - radius;
+        maxX = spawn.getX() + radius;
+        minY = spawn.getY() - radius;
+        maxY = spawn.getY() + radius;
+        minZ = spawn.getZ() - radius;
+        maxZ = spawn.getZ() + radius;
+    }
+
+    /**
+     * @return true if an unregistered player may move to the location
+     */
+    public boolean mayMoveTo(Location to) {
+        if (!movementAllowed) {
+            return false;
+        }
+        if (radius == 0) {
+            return true;
+        }
+        World world = to.getWorld();
+        if (world != boundsWorld) {
+            setBounds(world);
+        }
+        double x = to.getX();
+        double y = to.getY();
+        double z = to.getZ();
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+    }
+
+    /**
+     * @return the location the player is sent back to, or null if the next
+     *         correction should use the position the player came from
+     */
+    public Location getAnchor() {
+        return anchor;
+    }
+
+    public void setAnchor(Location anchor) {
+        this.anchor = anchor;
+    }
+
+    /**
+     * Records a correction unless the last one was less than interval
+     * milliseconds ago.
+     *
+     * @return true if a correction should be sent now
+     */
+    public boolean tryCorrect(long now, long interval) {
+        if (now - lastCorrection < interval) {
+            return false;
+        }
+        lastCorrection = now;
+        return true;
+    }
+
+    public int getEntityId() {
+        return entityId;
     }
 
     public String getName() {
@@ -18,15 +18,25 @@ package uk.org.whoami.authme.commands;
 
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.function.BiConsumer;
 
+import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
 
 import uk.org.whoami.authme.ConsoleLogger;
+import uk.org.whoami.authme.cache.auth.AuthState;
+import uk.org.whoami.authme.cache.auth.AuthStateCache;
 import uk.org.whoami.authme.cache.auth.PlayerAuth;
 import uk.org.whoami.authme.cache.auth.PlayerCache;
+import uk.org.whoami.authme.datasource.AsyncDataSource;
+import uk.org.whoami.authme.datasource.CacheDataSource;
+import uk.org.whoami.authme.datasource.CircuitBreaker;
 import uk.org.whoami.authme.datasource.DataSource;
+import uk.org.whoami.authme.datasource.DataSource.PurgeProgress;
+import uk.org.whoami.authme.datasource.DataSourceException;
 import uk.org.whoami.authme.security.PasswordSecurity;
 import uk.org.whoami.authme.settings.Messages;
 import uk.org.whoami.authme.settings.Settings;
@@ -36,15 +46,19 @@ public class AdminCommand implements CommandExecutor {
     private Messages m = Messages.getInstance();
     private Settings settings = Settings.getInstance();
     private DataSource database;
+    private AsyncDataSource asyncDatabase;
+    private CircuitBreaker circuitBreaker;
 
-    public AdminCommand(DataSource database) {
+    public AdminCommand(DataSource database, AsyncDataSource asyncDatabase, CircuitBreaker circuitBreaker) {
         this.database = database;
+        this.asyncDatabase = asyncDatabase;
+        this.circuitBreaker = circuitBreaker;
     }
 
     @Override
     public boolean onCommand(CommandSender sender, Command cmnd, String label, String[] args) {
         if (args.length == 0) {
-            sender.sendMessage("Usage: /authme reload|register playername password|changepassword playername password|unregister playername|purge|betaevo");
+            sender.sendMessage("Usage: /authme reload|register playername password|changepassword playername password|unregister playername|purge|betaevo|status");
             return true;
         }
 
@@ -63,7 +77,26 @@ public class AdminCommand implements CommandExecutor {
                 long days = Long.parseLong(args[1]) * 86400000;
                 long until = new Date().getTime() - days;
 
-                sender.sendMessage("Deleted " + database.purgeDatabase(until) + " user accounts");
+                final CommandSender target = sender;
+                sender.sendMessage("Purging accounts not used for " + args[1] + " days...");
+                PurgeProgress progress = new PurgeProgress() {
+
+                    @Override
+                    public void purged(int total) {
+                        target.sendMessage("Purge in progress, " + total + " accounts deleted so far");
+                    }
+                };
+                asyncDatabase.purgeDatabase(until, progress).whenComplete(new BiConsumer<Integer, Throwable>() {
+
+                    @Override
+                    public void accept(Integer deleted, Throwable failure) {
+                        if (failure != null) {
+                            target.sendMessage(m._("error"));
+                            return;
+                        }
+                        target.sendMessage("Deleted " + deleted + " user accounts");
+                    }
+                });
 
             } catch (NumberFormatException e) {
                 sender.sendMessage("Usage: /authme purge <DAYS>");
@@ -74,6 +107,18 @@ public class AdminCommand implements CommandExecutor {
             settings.reload();
             m.reload();
             sender.sendMessage(m._("reload"));
+        } else if (args[0].equalsIgnoreCase("status")) {
+            sender.sendMessage("Data source: " + settings.getDataSource());
+            if (circuitBreaker != null) {
+                sender.sendMessage("Circuit breaker: " + circuitBreaker.getState()
+                        + " (" + circuitBreaker.getFailures() + " consecutive failures)");
+            }
+            if (database instanceof CacheDataSource) {
+                CacheDataSource cache = (CacheDataSource) database;
+                sender.sendMessage("Cache: " + cache.getSize() + "/" + cache.getMaxSize() + " accounts, "
+                        + cache.getHits() + " hits, " + cache.getMisses() + " misses, "
+                        + cache.getEvictions() + " evictions");
+            }
         } else if (args[0].equalsIgnoreCase("betaevo")) {
             boolean betaEVO = settings.isKickNonAuthenticatedEnabled();
 
@@ -95,15 +140,14 @@ public class AdminCommand implements CommandExecutor {
                 String name = args[1].toLowerCase();
                 String hash = PasswordSecurity.getHash(settings.getPasswordHash(), args[2]);
 
-                if (database.isAuthAvailable(name)) {
-                    sender.sendMessage(m._("user_regged"));
-                    return true;
-                }
-
                 PlayerAuth auth = new PlayerAuth(name, hash, "198.18.0.1", 0);
-                if (!database.saveAuth(auth)) {
-                    sender.sendMessage(m._("error"));
-                    return true;
+                switch (database.saveAuthIfAbsent(auth)) {
+                    case DUPLICATE:
+                        sender.sendMessage(m._("user_regged"));
+                        return true;
+                    case FAILED:
+                        sender.sendMessage(m._("error"));
+                        return true;
                 }
                 sender.sendMessage(m._("registered"));
                 ConsoleLogger.info(args[1] + " registered");
@@ -121,27 +165,35 @@ public class AdminCommand implements CommandExecutor {
                 String name = args[1].toLowerCase();
                 String hash = PasswordSecurity.getHash(settings.getPasswordHash(), args[2]);
 
-                PlayerAuth auth = null;
+                PlayerAuth current = null;
                 if (PlayerCache.getInstance().isAuthenticated(name)) {
-                    auth = PlayerCache.getInstance().getAuth(name);
-                } else if (database.isAuthAvailable(name)) {
-                    auth = database.getAuth(name);
+                    current = PlayerCache.getInstance().getAuth(name);
                 } else {
+                    current = database.getAuth(name);
+                }
+                if (current == null) {
                     sender.sendMessage(m._("unknown_user"));
                     return true;
                 }
-                auth.setHash(hash);
 
+                // The cached accounts are shared, they only change once the
+                // new hash is saved
+                PlayerAuth auth = new PlayerAuth(current.getNickname(), hash, current.getIp(), current.getLastLogin());
                 if (!database.updatePassword(auth)) {
                     sender.sendMessage(m._("error"));
                     return true;
                 }
+                if (PlayerCache.getInstance().isAuthenticated(name)) {
+                    PlayerCache.getInstance().updatePlayer(auth);
+                }
 
                 sender.sendMessage("pwd_changed");
                 ConsoleLogger.info(args[0] + "'s password changed");
             } catch (NoSuchAlgorithmException ex) {
                 ConsoleLogger.showError(ex.getMessage());
                 sender.sendMessage(m._("error"));
+            } catch (DataSourceException ex) {
+                sender.sendMessage(m._("error"));
             }
         } else if (args[0].equalsIgnoreCase("unregister")) {
             if (args.length != 2) {
@@ -157,11 +209,15 @@ public class AdminCommand implements CommandExecutor {
             }
 
             PlayerCache.getInstance().removePlayer(name);
+            Player player = Bukkit.getServer().getPlayer(name);
+            if (player != null) {
+                AuthStateCache.getInstance().setState(player, AuthState.unregistered());
+            }
             sender.sendMessage("unregistered");
 
             ConsoleLogger.info(args[1] + " unregistered");
         } else {
-            sender.sendMessage("Usage: /authme reload|register playername password|changepassword playername password|unregister playername");
+            sender.sendMessage("Usage: /authme reload|register playername password|changepassword playername password|unregister playername|purge|betaevo|status");
         }
         return true;
     }
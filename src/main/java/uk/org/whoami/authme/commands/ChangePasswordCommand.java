@@ -17,6 +17,7 @@
 package uk.org.whoami.authme.commands;
 
 import java.security.NoSuchAlgorithmException;
+import java.util.function.BiConsumer;
 
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
@@ -26,7 +27,7 @@ import org.bukkit.entity.Player;
 import uk.org.whoami.authme.ConsoleLogger;
 import uk.org.whoami.authme.cache.auth.PlayerAuth;
 import uk.org.whoami.authme.cache.auth.PlayerCache;
-import uk.org.whoami.authme.datasource.DataSource;
+import uk.org.whoami.authme.datasource.AsyncDataSource;
 import uk.org.whoami.authme.security.PasswordSecurity;
 import uk.org.whoami.authme.settings.Messages;
 import uk.org.whoami.authme.settings.Settings;
@@ -35,9 +36,9 @@ public class ChangePasswordCommand implements CommandExecutor {
 
     private Messages m = Messages.getInstance();
     private Settings settings = Settings.getInstance();
-    private DataSource database;
+    private AsyncDataSource database;
 
-    public ChangePasswordCommand(DataSource database) {
+    public ChangePasswordCommand(AsyncDataSource database) {
         this.database = database;
     }
 
@@ -52,7 +53,7 @@ public class ChangePasswordCommand implements CommandExecutor {
             return true;
         }
 
-        Player player = (Player) sender;
+        final Player player = (Player) sender;
         String name = player.getName().toLowerCase();
         String ip = player.getAddress().getAddress().getHostAddress();
 
@@ -69,16 +70,16 @@ public class ChangePasswordCommand implements CommandExecutor {
         try {
             String hashnew = PasswordSecurity.getHash(settings.getPasswordHash(), args[1]);
 
-            if (PasswordSecurity.comparePasswordWithHash(args[0], PlayerCache.getInstance().getAuth(name).getHash())) {
-                PlayerAuth auth = PlayerCache.getInstance().getAuth(name);
-                auth.setHash(hashnew);
-                if (!database.updatePassword(auth)) {
-                    player.sendMessage(m._("error"));
-                    return true;
-                }
-                PlayerCache.getInstance().updatePlayer(auth);
-                player.sendMessage(m._("pwd_changed"));
-                ConsoleLogger.info(player.getDisplayName() + " changed his password");
+            PlayerAuth current = PlayerCache.getInstance().getAuth(name);
+            if (PasswordSecurity.comparePasswordWithHash(args[0], current.getHash())) {
+                final PlayerAuth auth = new PlayerAuth(name, hashnew, current.getIp(), current.getLastLogin());
+                database.updatePassword(auth).whenComplete(new BiConsumer<Boolean, Throwable>() {
+
+                    @Override
+                    public void accept(Boolean updated, Throwable failure) {
+                        passwordChanged(player, auth, failure == null && updated);
+                    }
+                });
             } else {
                 player.sendMessage(m._("wrong_pwd"));
             }
@@ -88,4 +89,19 @@ public class ChangePasswordCommand implements CommandExecutor {
         }
         return true;
     }
+
+    private void passwordChanged(Player player, PlayerAuth auth, boolean updated) {
+        if (!player.isOnline()) {
+            return;
+        }
+        if (!updated) {
+            player.sendMessage(m._("error"));
+            return;
+        }
+        if (PlayerCache.getInstance().isAuthenticated(auth.getNickname())) {
+            PlayerCache.getInstance().updatePlayer(auth);
+        }
+        player.sendMessage(m._("pwd_changed"));
+        ConsoleLogger.info(player.getDisplayName() + " changed his password");
+    }
 }
@@ -18,6 +18,7 @@ package uk.org.whoami.authme.commands;
 
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.function.BiConsumer;
 
 import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
@@ -27,11 +28,13 @@ import org.bukkit.entity.Player;
 
 import org.bukkit.event.Event;
 import uk.org.whoami.authme.ConsoleLogger;
+import uk.org.whoami.authme.cache.auth.AuthState;
+import uk.org.whoami.authme.cache.auth.AuthStateCache;
 import uk.org.whoami.authme.cache.auth.PlayerAuth;
 import uk.org.whoami.authme.cache.auth.PlayerCache;
 import uk.org.whoami.authme.cache.limbo.LimboCache;
 import uk.org.whoami.authme.cache.limbo.LimboPlayer;
-import uk.org.whoami.authme.datasource.DataSource;
+import uk.org.whoami.authme.datasource.AsyncDataSource;
 import uk.org.whoami.authme.event.AuthLoginEvent;
 import uk.org.whoami.authme.event.callLogin;
 import uk.org.whoami.authme.security.PasswordSecurity;
@@ -44,9 +47,9 @@ public class LoginCommand implements CommandExecutor {
 
     private Messages m = Messages.getInstance();
     private Settings settings = Settings.getInstance();
-    private DataSource database;
+    private AsyncDataSource database;
 
-    public LoginCommand(DataSource database) {
+    public LoginCommand(AsyncDataSource database) {
         this.database = database;
     }
 
@@ -61,9 +64,8 @@ public class LoginCommand implements CommandExecutor {
             return true;
         }
 
-        Player player = (Player) sender;
+        final Player player = (Player) sender;
         String name = player.getName().toLowerCase();
-        String ip = player.getAddress().getAddress().getHostAddress();
 
         //Check if user is staff
         if(player.hasPermission("authme.evolutions.staff") || player.isOp()) {
@@ -86,25 +88,52 @@ public class LoginCommand implements CommandExecutor {
             return true;
         }
 
-        if (!database.isAuthAvailable(player.getName().toLowerCase())) {
+        final String password = args[0];
+        database.getAuth(name).whenComplete(new BiConsumer<PlayerAuth, Throwable>() {
+
+            @Override
+            public void accept(PlayerAuth registered, Throwable failure) {
+                if (failure != null) {
+                    if (player.isOnline()) {
+                        player.sendMessage(m._("error"));
+                    }
+                    return;
+                }
+                login(player, password, registered);
+            }
+        });
+        return true;
+    }
+
+    private void login(Player player, String password, PlayerAuth registered) {
+        String name = player.getName().toLowerCase();
+        String ip = player.getAddress().getAddress().getHostAddress();
+
+        // The player may have left or logged in while the lookup was running
+        if (!player.isOnline() || PlayerCache.getInstance().isAuthenticated(name)) {
+            return;
+        }
+
+        if (registered == null) {
             player.sendMessage(m._("user_unknown"));
-            return true;
+            return;
         }
-        
-        String hash = database.getAuth(name).getHash();
+
+        String hash = registered.getHash();
 
         try {
-            if (PasswordSecurity.comparePasswordWithHash(args[0], hash)) {
+            if (PasswordSecurity.comparePasswordWithHash(password, hash)) {
                 //Login Event Start
                 final AuthLoginEvent event = new AuthLoginEvent(callLogin.Reason.AuthemeLogin, player);
                 Bukkit.getServer().getPluginManager().callEvent(event);
                 if(event.isCancelled()) {
-                    return true;
+                    return;
                 }
                 //Login Event End
                 PlayerAuth auth = new PlayerAuth(name, hash, ip, new Date().getTime());
                 database.updateSession(auth);
                 PlayerCache.getInstance().addPlayer(auth);
+                AuthStateCache.getInstance().setState(player, AuthState.AUTHENTICATED);
                 LimboPlayer limbo = LimboCache.getInstance().getLimboPlayer(name);
                 if (limbo != null) {
                     player.getInventory().setContents(limbo.getInventory());
@@ -112,7 +141,7 @@ public class LoginCommand implements CommandExecutor {
                     if (settings.isTeleportToSpawnEnabled()) {
                         player.teleport(limbo.getLoc());
                     }
-                    sender.getServer().getScheduler().cancelTask(limbo.getTimeoutTaskId());
+                    player.getServer().getScheduler().cancelTask(limbo.getTimeoutTaskId());
                     LimboCache.getInstance().deleteLimboPlayer(name);
                 }
                 player.sendMessage(m._("login"));
@@ -128,8 +157,7 @@ public class LoginCommand implements CommandExecutor {
             }
         } catch (NoSuchAlgorithmException ex) {
             ConsoleLogger.showError(ex.getMessage());
-            sender.sendMessage(m._("error"));
+            player.sendMessage(m._("error"));
         }
-        return true;
     }
 }
@@ -25,6 +25,8 @@ import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitScheduler;
 
 import uk.org.whoami.authme.ConsoleLogger;
+import uk.org.whoami.authme.cache.auth.AuthState;
+import uk.org.whoami.authme.cache.auth.AuthStateCache;
 import uk.org.whoami.authme.cache.auth.PlayerAuth;
 import uk.org.whoami.authme.cache.auth.PlayerCache;
 import uk.org.whoami.authme.cache.limbo.LimboCache;
@@ -66,11 +68,12 @@ public class LogoutCommand implements CommandExecutor {
         }
 
         //clear session
-        PlayerAuth auth = PlayerCache.getInstance().getAuth(name);
-        auth.setIp("198.18.0.1");
+        PlayerAuth current = PlayerCache.getInstance().getAuth(name);
+        PlayerAuth auth = new PlayerAuth(current.getNickname(), current.getHash(), "198.18.0.1", current.getLastLogin());
         database.updateSession(auth);
 
         PlayerCache.getInstance().removePlayer(name);
+        AuthStateCache.getInstance().setState(player, AuthState.MUST_LOGIN);
 
         LimboCache.getInstance().addLimboPlayer(player);
         player.getInventory().setArmorContents(new ItemStack[0]);
@@ -23,11 +23,14 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import uk.org.whoami.authme.AuthMe;
 import uk.org.whoami.authme.ConsoleLogger;
+import uk.org.whoami.authme.cache.auth.AuthState;
+import uk.org.whoami.authme.cache.auth.AuthStateCache;
 import uk.org.whoami.authme.cache.auth.PlayerAuth;
 import uk.org.whoami.authme.cache.auth.PlayerCache;
 import uk.org.whoami.authme.cache.limbo.LimboCache;
 import uk.org.whoami.authme.cache.limbo.LimboPlayer;
-import uk.org.whoami.authme.datasource.DataSource;
+import uk.org.whoami.authme.datasource.AsyncDataSource;
+import uk.org.whoami.authme.datasource.DataSource.SaveResult;
 import uk.org.whoami.authme.event.AuthLoginEvent;
 import uk.org.whoami.authme.event.callLogin;
 import uk.org.whoami.authme.security.PasswordSecurity;
@@ -36,15 +39,16 @@ import uk.org.whoami.authme.settings.Settings;
 
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.function.BiConsumer;
 
 public class RegisterCommand implements CommandExecutor {
 
     private Messages m = Messages.getInstance();
     private Settings settings = Settings.getInstance();
-    private DataSource database;
+    private AsyncDataSource database;
     private AuthMe plugin;
 
-    public RegisterCommand(AuthMe plugin, DataSource database) {
+    public RegisterCommand(AuthMe plugin, AsyncDataSource database) {
         this.database = database;
         this.plugin = plugin;
     }
@@ -60,9 +64,9 @@ public class RegisterCommand implements CommandExecutor {
             return true;
         }
 
-        Player player = (Player) sender;
+        final Player player = (Player) sender;
         String name = player.getName().toLowerCase();
-        String ip = player.getAddress().getAddress().getHostAddress();
+        final String ip = player.getAddress().getAddress().getHostAddress();
 
         if (PlayerCache.getInstance().isAuthenticated(name)) {
             player.sendMessage(m._("logged_in"));
@@ -79,48 +83,84 @@ public class RegisterCommand implements CommandExecutor {
             return true;
         }
 
-        if (database.isAuthAvailable(player.getName().toLowerCase())) {
-            player.sendMessage(m._("user_regged"));
+        final PlayerAuth auth;
+        try {
+            String hash = PasswordSecurity.getHash(settings.getPasswordHash(), args[0]);
+            auth = new PlayerAuth(name, hash, ip, new Date().getTime());
+        } catch (NoSuchAlgorithmException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+            player.sendMessage(m._("error"));
             return true;
         }
 
+        // One round trip: the unique key tells whether the name was free
+        database.saveAuthIfAbsent(auth).whenComplete(new BiConsumer<SaveResult, Throwable>() {
+
+            @Override
+            public void accept(SaveResult result, Throwable failure) {
+                registered(player, auth, failure != null ? SaveResult.FAILED : result);
+            }
+        });
+        return true;
+    }
+
+    private void rollback(final String name) {
+        database.removeAuth(name).whenComplete(new BiConsumer<Boolean, Throwable>() {
+
+            @Override
+            public void accept(Boolean removed, Throwable failure) {
+                if (failure != null || !removed) {
+                    ConsoleLogger.showError("Could not remove the cancelled registration of " + name);
+                }
+            }
+        });
+    }
+
+    private void registered(Player player, PlayerAuth auth, SaveResult result) {
+        String name = auth.getNickname();
+
+        // The player may have left or logged in while the account was saved
+        if (!player.isOnline() || PlayerCache.getInstance().isAuthenticated(name)) {
+            return;
+        }
+
+        switch (result) {
+            case DUPLICATE:
+                player.sendMessage(m._("user_regged"));
+                return;
+            case FAILED:
+                player.sendMessage(m._("error"));
+                return;
+        }
+
         //Login Event Start
         final AuthLoginEvent event = new AuthLoginEvent(callLogin.Reason.AuthmeRegister, player);
         Bukkit.getServer().getPluginManager().callEvent(event);
         if (event.isCancelled()) {
-            return true;
+            // The event only fires for a name that was really free, so a
+            // cancelled registration is taken back
+            rollback(name);
+            return;
         }
         //Login Event End
 
-        try {
-            String hash = PasswordSecurity.getHash(settings.getPasswordHash(), args[0]);
+        PlayerCache.getInstance().addPlayer(auth);
+        AuthStateCache.getInstance().setState(player, AuthState.AUTHENTICATED);
 
-            PlayerAuth auth = new PlayerAuth(name, hash, ip, new Date().getTime());
-            if (!database.saveAuth(auth)) {
-                player.sendMessage(m._("error"));
-                return true;
-            }
-            PlayerCache.getInstance().addPlayer(auth);
-
-            LimboPlayer limbo = LimboCache.getInstance().getLimboPlayer(name);
-            if (limbo != null) {
-                player.getInventory().setContents(limbo.getInventory());
-                player.getInventory().setArmorContents(limbo.getArmour());
-                if (settings.isTeleportToSpawnEnabled()) {
-                    player.teleport(limbo.getLoc());
-                }
-
-                sender.getServer().getScheduler().cancelTask(limbo.getTimeoutTaskId());
-                LimboCache.getInstance().deleteLimboPlayer(name);
+        LimboPlayer limbo = LimboCache.getInstance().getLimboPlayer(name);
+        if (limbo != null) {
+            player.getInventory().setContents(limbo.getInventory());
+            player.getInventory().setArmorContents(limbo.getArmour());
+            if (settings.isTeleportToSpawnEnabled()) {
+                player.teleport(limbo.getLoc());
             }
 
-            player.sendMessage(m._("registered"));
-            ConsoleLogger.info(player.getDisplayName() + " registered");
-            player.teleport(player.getWorld().getSpawnLocation());
-        } catch (NoSuchAlgorithmException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            sender.sendMessage(m._("error"));
+            player.getServer().getScheduler().cancelTask(limbo.getTimeoutTaskId());
+            LimboCache.getInstance().deleteLimboPlayer(name);
         }
-        return true;
+
+        player.sendMessage(m._("registered"));
+        ConsoleLogger.info(player.getDisplayName() + " registered");
+        player.teleport(player.getWorld().getSpawnLocation());
     }
 }
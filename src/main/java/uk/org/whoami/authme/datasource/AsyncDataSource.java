@@ -0,0 +1,242 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.datasource;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.bukkit.plugin.Plugin;
+
+import uk.org.whoami.authme.ConsoleLogger;
+import uk.org.whoami.authme.cache.auth.PlayerAuth;
+import uk.org.whoami.authme.datasource.DataSource.PurgeProgress;
+import uk.org.whoami.authme.datasource.DataSource.SaveResult;
+
+/**
+ * Runs DataSource calls off the server thread. Calls are spread over
+ * single-threaded lanes by account name, so everything submitted for one
+ * account is applied in order. Futures complete on the server thread.
+ *
+ * Each lane queues at most queueSize calls. A call that does not fit, or
+ * that throws, completes its future exceptionally, so callers must handle
+ * failures (whenComplete/handle) and not just results.
+ */
+public class AsyncDataSource {
+
+    private static final long SHUTDOWN_WAIT = 5000;
+
+    private final DataSource source;
+    private final ExecutorService[] lanes;
+    private final ExecutorService maintenance;
+    private final Executor mainThread;
+
+    public AsyncDataSource(final Plugin plugin, DataSource source, int threads, int queueSize) {
+        this.source = source;
+        this.lanes = new ExecutorService[Math.max(1, threads)];
+        for (int i = 0; i < lanes.length; i++) {
+            final String threadName = "AuthMe-IO-" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        this.maintenance = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AuthMe-IO-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.mainThread = new Executor() {
+
+            @Override
+            public void execute(Runnable task) {
+                plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, task);
+            }
+        };
+    }
+
+    public CompletableFuture<PlayerAuth> getAuth(final String user) {
+        return submit(user, new Supplier<PlayerAuth>() {
+
+            @Override
+            public PlayerAuth get() {
+                return source.getAuth(user);
+            }
+        });
+    }
+
+    public CompletableFuture<SaveResult> saveAuthIfAbsent(final PlayerAuth auth) {
+        return submit(auth.getNickname(), new Supplier<SaveResult>() {
+
+            @Override
+            public SaveResult get() {
+                return source.saveAuthIfAbsent(auth);
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> updateSession(final PlayerAuth auth) {
+        return submit(auth.getNickname(), new Supplier<Boolean>() {
+
+            @Override
+            public Boolean get() {
+                return source.updateSession(auth);
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> updatePassword(final PlayerAuth auth) {
+        return submit(auth.getNickname(), new Supplier<Boolean>() {
+
+            @Override
+            public Boolean get() {
+                return source.updatePassword(auth);
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> removeAuth(final String user) {
+        return submit(user, new Supplier<Boolean>() {
+
+            @Override
+            public Boolean get() {
+                return source.removeAuth(user);
+            }
+        });
+    }
+
+    /**
+     * Runs on its own thread so a long purge does not delay the account
+     * lanes. Progress is passed on on the server thread.
+     */
+    public CompletableFuture<Integer> purgeDatabase(final long until, final PurgeProgress progress) {
+        final PurgeProgress relay = new PurgeProgress() {
+
+            @Override
+            public void purged(final int total) {
+                mainThread.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        progress.purged(total);
+                    }
+                });
+            }
+        };
+        return submit(maintenance, new Supplier<Integer>() {
+
+            @Override
+            public Integer get() {
+                return source.purgeDatabase(until, relay);
+            }
+        });
+    }
+
+    /**
+     * Stops accepting work and waits for queued calls to reach the
+     * backend. Must run before the backend is closed.
+     */
+    public void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        // A running purge is not waited for, closing the backend ends it
+        maintenance.shutdown();
+        long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT;
+        try {
+            for (ExecutorService lane : lanes) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0 || !lane.awaitTermination(wait, TimeUnit.MILLISECONDS)) {
+                    ConsoleLogger.showError("Gave up waiting for pending database calls");
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(String user, Supplier<T> call) {
+        return submit(lane(user), call);
+    }
+
+    private <T> CompletableFuture<T> submit(ExecutorService executor, final Supplier<T> call) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        try {
+            execute(executor, call, result);
+        } catch (final RejectedExecutionException ex) {
+            ConsoleLogger.showError("Database queue is full, dropping a call");
+            mainThread.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    result.completeExceptionally(ex);
+                }
+            });
+        }
+        return result;
+    }
+
+    private <T> void execute(ExecutorService executor, final Supplier<T> call, final CompletableFuture<T> result) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    final T value = call.get();
+                    mainThread.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            result.complete(value);
+                        }
+                    });
+                } catch (final RuntimeException ex) {
+                    ConsoleLogger.showError(ex.getMessage());
+                    mainThread.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            result.completeExceptionally(ex);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private ExecutorService lane(String user) {
+        return lanes[(user.toLowerCase().hashCode() & Integer.MAX_VALUE) % lanes.length];
+    }
+}
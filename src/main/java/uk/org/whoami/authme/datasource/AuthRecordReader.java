@@ -0,0 +1,191 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.datasource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+import uk.org.whoami.authme.cache.auth.PlayerAuth;
+
+/**
+ * Reads the PLAYERNAME:HASHSUM:IP:LOGIN records of {@link FileDataSource}
+ * straight out of a char buffer. Field boundaries are found in place, so
+ * stepping through the file allocates nothing; Strings are only created for
+ * the fields that are asked for.
+ */
+final class AuthRecordReader implements Closeable {
+
+    private static final int MAX_FIELDS = 4;
+    private final Reader in;
+    private char[] buf = new char[8192];
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private int fieldCount;
+    private final int[] starts = new int[MAX_FIELDS];
+    private final int[] ends = new int[MAX_FIELDS];
+
+    AuthRecordReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Advances to the next non-empty line.
+     *
+     * @return false once the end of the input is reached
+     */
+    boolean next() throws IOException {
+        while (true) {
+            int start = pos;
+            int end = -1;
+            for (int i = pos; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                if (!eof) {
+                    fill();
+                    continue;
+                }
+                if (start == limit) {
+                    return false;
+                }
+                end = limit;
+            }
+            pos = end < limit ? end + 1 : end;
+            if (end > start && buf[end - 1] == '\r') {
+                end--;
+            }
+            if (end > start) {
+                split(start, end);
+                return true;
+            }
+        }
+    }
+
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            char[] grown = new char[buf.length * 2];
+            System.arraycopy(buf, 0, grown, 0, limit);
+            buf = grown;
+        }
+        int read = in.read(buf, limit, buf.length - limit);
+        if (read < 0) {
+            eof = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    private void split(int start, int end) {
+        fieldCount = 0;
+        starts[0] = start;
+        for (int i = start; i < end; i++) {
+            if (buf[i] == ':') {
+                ends[fieldCount++] = i;
+                if (fieldCount == MAX_FIELDS) {
+                    // String.split() drops trailing empty fields, so the
+                    // rest of the line may only hold more separators
+                    for (int j = i + 1; j < end; j++) {
+                        if (buf[j] != ':') {
+                            fieldCount = MAX_FIELDS + 1;
+                            return;
+                        }
+                    }
+                    return;
+                }
+                starts[fieldCount] = i + 1;
+            }
+        }
+        ends[fieldCount++] = end;
+    }
+
+    /**
+     * @return true if the current line has no separator at all, which the
+     *         journal uses to mark a removed account
+     */
+    boolean isTombstone() {
+        return fieldCount == 1;
+    }
+
+    String getField(int field) {
+        return new String(buf, starts[field], ends[field] - starts[field]);
+    }
+
+    private long getLong(int field) {
+        int i = starts[field];
+        int end = ends[field];
+        boolean negative = i < end && buf[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("empty number");
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = buf[i];
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("illegal digit " + c);
+            }
+            if (value > (Long.MAX_VALUE - (c - '0')) / 10) {
+                throw new NumberFormatException("number too large");
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Builds the account on the current line. Like String.split() trailing
+     * empty fields are ignored.
+     *
+     * @return null if the line does not have two to four fields
+     * @throws NumberFormatException if the login time is not a number
+     */
+    PlayerAuth toAuth() {
+        if (fieldCount > MAX_FIELDS) {
+            return null;
+        }
+        int count = fieldCount;
+        while (count > 0 && ends[count - 1] == starts[count - 1]) {
+            count--;
+        }
+        switch (count) {
+            case 2:
+                return new PlayerAuth(getField(0), getField(1), "198.18.0.1", 0);
+            case 3:
+                return new PlayerAuth(getField(0), getField(1), getField(2), 0);
+            case 4:
+                return new PlayerAuth(getField(0), getField(1), getField(2), getLong(3));
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,624 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.datasource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import uk.org.whoami.authme.ConsoleLogger;
+import uk.org.whoami.authme.cache.auth.PlayerAuth;
+import uk.org.whoami.authme.settings.Settings;
+
+public class BinaryDataSource implements DataSource {
+
+    /* file layout:
+     *
+     * header:  MAGIC(int) VERSION(int) SLOTS(int) RESERVED(int)
+     * records: SLOTS fixed-width records of RECORD_SIZE bytes
+     *
+     * record:  STATUS(byte)
+     *          NAMELEN(byte) NAME(NAME_BYTES)
+     *          HASHLEN(byte) HASH(HASH_BYTES)
+     *          CHECKSUM(int)  CRC32 of NAMELEN up to HASH
+     *          SESSION SESSION
+     *
+     * session: SEQ(int)
+     *          IPLEN(byte) IP(IP_BYTES)
+     *          LASTLOGIN(long)
+     *          CHECKSUM(int)  CRC32 of SEQ up to LASTLOGIN
+     *
+     * Strings are stored as UTF-8. Removed records are marked FREE and
+     * reused by the next registration.
+     *
+     * A session update is written in place into the session that is not
+     * current, with the next SEQ. The intact session with the highest SEQ
+     * is the current one, so a torn session write leaves the previous
+     * session in effect. Only that session is forced, and only if
+     * DataSource.fileFsync is on.
+     *
+     * Names and hashes are never modified in place. A password change
+     * writes a complete copy into a free slot flagged PENDING, forces it,
+     * frees the old slot, forces again and only then flags the copy USED.
+     * A PENDING record is promoted on startup if no USED record with the
+     * same name exists and discarded otherwise. A record whose checksum
+     * does not match is treated as FREE, so a crash leaves either the old
+     * or the new version of an account but never a torn one.
+     *
+     * Versions 1 and 2 used 288 byte records with a single session inside
+     * the checksummed part. They are rewritten into this layout on start.
+     */
+    private static final int MAGIC = 0x414d4231;
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOTS_OFFSET = 8;
+    private static final byte FREE = 0;
+    private static final byte USED = 1;
+    private static final byte PENDING = 2;
+    private static final int NAME_BYTES = 64;
+    private static final int HASH_BYTES = 160;
+    private static final int IP_BYTES = 48;
+    private static final int NAME_OFFSET = 1;
+    private static final int HASH_OFFSET = NAME_OFFSET + 1 + NAME_BYTES;
+    private static final int CHECKSUM_OFFSET = HASH_OFFSET + 1 + HASH_BYTES;
+    private static final int SESSION_OFFSET = CHECKSUM_OFFSET + 4;
+    private static final int IP_OFFSET = 4;
+    private static final int LASTLOGIN_OFFSET = IP_OFFSET + 1 + IP_BYTES;
+    private static final int SESSION_CHECKSUM_OFFSET = LASTLOGIN_OFFSET + 8;
+    private static final int SESSION_SIZE = SESSION_CHECKSUM_OFFSET + 4;
+    private static final int RECORD_SIZE = 384;
+    private static final int LEGACY_IP_OFFSET = CHECKSUM_OFFSET;
+    private static final int LEGACY_LASTLOGIN_OFFSET = LEGACY_IP_OFFSET + 1 + IP_BYTES;
+    private static final int LEGACY_CHECKSUM_OFFSET = LEGACY_LASTLOGIN_OFFSET + 8;
+    private static final int LEGACY_RECORD_SIZE = 288;
+    private static final String NO_IP = "198.18.0.1";
+    private static final int MIN_CAPACITY = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Method FORCE_RANGE = forceRange();
+    private File source;
+    private boolean fsync;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int slots;
+    private HashMap<String, Integer> index = new HashMap<String, Integer>();
+    private List<Integer> freeSlots = new ArrayList<Integer>();
+
+    public BinaryDataSource() throws IOException {
+        source = new File(Settings.BINARY_AUTH_FILE);
+        fsync = Settings.getInstance().isFileFsyncEnabled();
+        if (!source.exists()) {
+            File text = new File(Settings.AUTH_FILE);
+            if (text.exists()) {
+                convert(text, source);
+            }
+        }
+        open();
+    }
+
+    /**
+     * Imports a PLAYERNAME:HASHSUM:IP:LOGIN file as written by
+     * {@link FileDataSource} into a new binary file. The text file is left
+     * untouched.
+     */
+    public static int convert(File from, File to) throws IOException {
+        int converted = write(FileDataSource.readAll(from), to);
+        ConsoleLogger.info("Converted " + converted + " accounts from " + from.getName() + " to " + to.getName());
+        return converted;
+    }
+
+    // Writes the accounts into a new file next to the target and renames
+    // it over the target once it is complete
+    private static int write(Collection<PlayerAuth> auths, File to) throws IOException {
+        File tmp = new File(to.getPath() + ".tmp");
+        tmp.delete();
+        BinaryDataSource target = new BinaryDataSource(tmp);
+        int written = 0;
+        try {
+            for (PlayerAuth auth : auths) {
+                if (target.saveAuth(auth)) {
+                    written++;
+                } else {
+                    ConsoleLogger.showError("Could not convert account " + auth.getNickname());
+                }
+            }
+        } finally {
+            target.close();
+        }
+        try {
+            Files.move(tmp.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return written;
+    }
+
+    // Conversions force the whole file once in close()
+    private BinaryDataSource(File source) throws IOException {
+        this.source = source;
+        this.fsync = false;
+        open();
+    }
+
+    private synchronized void open() throws IOException {
+        boolean created = !source.exists() || source.length() == 0;
+        raf = new RandomAccessFile(source, "rw");
+        channel = raf.getChannel();
+        if (created) {
+            map(MIN_CAPACITY);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(SLOTS_OFFSET, 0);
+        } else {
+            map(channel.size());
+            int version = buffer.getInt(4);
+            if (buffer.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+                close();
+                throw new IOException(source.getName() + " is not an AuthMe binary database");
+            }
+            if (version < VERSION) {
+                upgrade(version);
+            }
+        }
+        buildIndex();
+    }
+
+    private void upgrade(int version) throws IOException {
+        List<PlayerAuth> auths = readLegacy(version);
+        raf.close();
+        unmap(buffer);
+        buffer = null;
+        write(auths, source);
+        raf = new RandomAccessFile(source, "rw");
+        channel = raf.getChannel();
+        map(channel.size());
+        ConsoleLogger.info("Upgraded " + source.getName() + " to version " + VERSION);
+    }
+
+    // Version 1 has no checksums, version 2 checksums the whole record
+    private List<PlayerAuth> readLegacy(int version) {
+        int count = buffer.getInt(SLOTS_OFFSET);
+        Map<String, PlayerAuth> used = new LinkedHashMap<String, PlayerAuth>();
+        List<PlayerAuth> pending = new ArrayList<PlayerAuth>();
+        for (int slot = 0; slot < count; slot++) {
+            int pos = HEADER_SIZE + slot * LEGACY_RECORD_SIZE;
+            byte status = buffer.get(pos);
+            if (status == FREE) {
+                continue;
+            }
+            if (version >= 2 && buffer.getInt(pos + LEGACY_CHECKSUM_OFFSET)
+                    != checksum(pos + NAME_OFFSET, LEGACY_CHECKSUM_OFFSET - NAME_OFFSET)) {
+                ConsoleLogger.showError("Discarding damaged record " + slot + " in " + source.getName());
+                continue;
+            }
+            PlayerAuth auth = new PlayerAuth(readString(pos + NAME_OFFSET), readString(pos + HASH_OFFSET),
+                    readString(pos + LEGACY_IP_OFFSET), buffer.getLong(pos + LEGACY_LASTLOGIN_OFFSET));
+            if (status == USED) {
+                used.put(auth.getNickname().toLowerCase(), auth);
+            } else {
+                pending.add(auth);
+            }
+        }
+        for (PlayerAuth auth : pending) {
+            String key = auth.getNickname().toLowerCase();
+            if (!used.containsKey(key)) {
+                used.put(key, auth);
+            }
+        }
+        return new ArrayList<PlayerAuth>(used.values());
+    }
+
+    private void map(long capacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void buildIndex() {
+        index.clear();
+        freeSlots.clear();
+        slots = buffer.getInt(SLOTS_OFFSET);
+        List<Integer> pending = new ArrayList<Integer>();
+        for (int slot = 0; slot < slots; slot++) {
+            int pos = position(slot);
+            byte status = buffer.get(pos);
+            if (status != FREE && !isIntact(pos)) {
+                ConsoleLogger.showError("Discarding damaged record " + slot + " in " + source.getName());
+                buffer.put(pos, FREE);
+                status = FREE;
+            }
+            if (status == USED) {
+                index.put(readString(pos + NAME_OFFSET).toLowerCase(), slot);
+            } else if (status == PENDING) {
+                pending.add(slot);
+            } else {
+                freeSlots.add(slot);
+            }
+        }
+        for (int slot : pending) {
+            String key = readString(position(slot) + NAME_OFFSET).toLowerCase();
+            if (index.containsKey(key)) {
+                buffer.put(position(slot), FREE);
+                freeSlots.add(slot);
+            } else {
+                buffer.put(position(slot), USED);
+                index.put(key, slot);
+            }
+        }
+        ConsoleLogger.info("Loaded " + index.size() + " accounts from " + source.getName());
+    }
+
+    private static int position(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private static int session(int pos, int which) {
+        return pos + SESSION_OFFSET + which * SESSION_SIZE;
+    }
+
+    private String readString(int pos) {
+        int len = buffer.get(pos) & 0xff;
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            bytes[i] = buffer.get(pos + 1 + i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    private void writeString(int pos, byte[] bytes) {
+        buffer.put(pos, (byte) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(pos + 1 + i, bytes[i]);
+        }
+    }
+
+    private static byte[] encode(String value, int max) {
+        byte[] bytes = value.getBytes(UTF8);
+        return bytes.length <= max ? bytes : null;
+    }
+
+    private int checksum(int pos, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(pos + i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private boolean isIntact(int pos) {
+        return buffer.getInt(pos + CHECKSUM_OFFSET) == checksum(pos + NAME_OFFSET, CHECKSUM_OFFSET - NAME_OFFSET);
+    }
+
+    private boolean isSessionIntact(int spos) {
+        return (buffer.get(spos + IP_OFFSET) & 0xff) <= IP_BYTES
+                && buffer.getInt(spos + SESSION_CHECKSUM_OFFSET) == checksum(spos, SESSION_CHECKSUM_OFFSET);
+    }
+
+    /**
+     * @return the current session of the record at pos, or -1 if neither
+     *         is intact
+     */
+    private int currentSession(int pos) {
+        boolean first = isSessionIntact(session(pos, 0));
+        boolean second = isSessionIntact(session(pos, 1));
+        if (first && second) {
+            return buffer.getInt(session(pos, 1)) - buffer.getInt(session(pos, 0)) > 0 ? 1 : 0;
+        }
+        return first ? 0 : second ? 1 : -1;
+    }
+
+    private void writeSession(int spos, int seq, byte[] ip, long lastLogin) {
+        buffer.putInt(spos, seq);
+        writeString(spos + IP_OFFSET, ip);
+        buffer.putLong(spos + LASTLOGIN_OFFSET, lastLogin);
+        buffer.putInt(spos + SESSION_CHECKSUM_OFFSET, checksum(spos, SESSION_CHECKSUM_OFFSET));
+    }
+
+    // A reused slot may still hold an intact session of the old record
+    private void clearSession(int spos) {
+        for (int i = 0; i < SESSION_CHECKSUM_OFFSET; i++) {
+            buffer.put(spos + i, (byte) 0);
+        }
+        buffer.putInt(spos + SESSION_CHECKSUM_OFFSET, ~checksum(spos, SESSION_CHECKSUM_OFFSET));
+    }
+
+    private PlayerAuth readRecord(int slot) {
+        int pos = position(slot);
+        String name = readString(pos + NAME_OFFSET);
+        String hash = readString(pos + HASH_OFFSET);
+        int current = currentSession(pos);
+        if (current < 0) {
+            return new PlayerAuth(name, hash, NO_IP, 0);
+        }
+        int spos = session(pos, current);
+        return new PlayerAuth(name, hash, readString(spos + IP_OFFSET), buffer.getLong(spos + LASTLOGIN_OFFSET));
+    }
+
+    private long readLastLogin(int pos) {
+        int current = currentSession(pos);
+        return current < 0 ? 0 : buffer.getLong(session(pos, current) + LASTLOGIN_OFFSET);
+    }
+
+    private int allocateSlot() throws IOException {
+        if (!freeSlots.isEmpty()) {
+            return freeSlots.remove(freeSlots.size() - 1);
+        }
+        long needed = position(slots + 1);
+        if (needed > buffer.capacity()) {
+            MappedByteBuffer old = buffer;
+            old.force();
+            map(Math.max(needed, buffer.capacity() * 2L));
+            unmap(old);
+        }
+        int slot = slots++;
+        buffer.putInt(SLOTS_OFFSET, slots);
+        return slot;
+    }
+
+    // MappedByteBuffer.force(int, int) only exists from Java 13 on, older
+    // runtimes force the whole mapping instead
+    private static Method forceRange() {
+        try {
+            return MappedByteBuffer.class.getMethod("force", int.class, int.class);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    private void force(int pos, int length) {
+        if (FORCE_RANGE != null) {
+            try {
+                FORCE_RANGE.invoke(buffer, pos, length);
+                return;
+            } catch (IllegalAccessException ex) {
+            } catch (InvocationTargetException ex) {
+            }
+        }
+        buffer.force();
+    }
+
+    // A mapping is otherwise only released when it is garbage collected.
+    // Callers must not use the buffer afterwards, so this is only done with
+    // the lock held and the field already pointing to the new mapping.
+    private static void unmap(MappedByteBuffer old) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), old);
+            return;
+        } catch (Exception ex) {
+        }
+        try {
+            // Java 8
+            Method cleanerMethod = old.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(old);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception ex) {
+            // left to the garbage collector
+        }
+    }
+
+    @Override
+    public synchronized boolean isAuthAvailable(String user) {
+        return index.containsKey(user.toLowerCase());
+    }
+
+    @Override
+    public synchronized PlayerAuth getAuth(String user) {
+        Integer slot = index.get(user.toLowerCase());
+        return slot != null ? readRecord(slot) : null;
+    }
+
+    @Override
+    public synchronized boolean saveAuth(PlayerAuth auth) {
+        return saveAuthIfAbsent(auth) == SaveResult.SAVED;
+    }
+
+    @Override
+    public synchronized SaveResult saveAuthIfAbsent(PlayerAuth auth) {
+        String key = auth.getNickname().toLowerCase();
+        if (index.containsKey(key)) {
+            return SaveResult.DUPLICATE;
+        }
+
+        byte[] name = encode(auth.getNickname(), NAME_BYTES);
+        byte[] hash = encode(auth.getHash(), HASH_BYTES);
+        byte[] ip = encode(auth.getIp(), IP_BYTES);
+        if (name == null || hash == null || ip == null) {
+            ConsoleLogger.showError("Account " + auth.getNickname() + " does not fit into a binary record");
+            return SaveResult.FAILED;
+        }
+
+        int slot;
+        try {
+            slot = allocateSlot();
+        } catch (IOException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+            return SaveResult.FAILED;
+        }
+        int pos = position(slot);
+        writeRecord(slot, name, hash, 1, ip, auth.getLastLogin());
+        if (fsync) {
+            force(pos, RECORD_SIZE);
+        }
+        buffer.put(pos, USED);
+        if (fsync) {
+            force(pos, 1);
+        }
+        index.put(key, slot);
+        return SaveResult.SAVED;
+    }
+
+    private void writeRecord(int slot, byte[] name, byte[] hash, int seq, byte[] ip, long lastLogin) {
+        int pos = position(slot);
+        writeString(pos + NAME_OFFSET, name);
+        writeString(pos + HASH_OFFSET, hash);
+        buffer.putInt(pos + CHECKSUM_OFFSET, checksum(pos + NAME_OFFSET, CHECKSUM_OFFSET - NAME_OFFSET));
+        writeSession(session(pos, 0), seq, ip, lastLogin);
+        clearSession(session(pos, 1));
+    }
+
+    /**
+     * Replaces the record in slot old by a new copy with another hash, see
+     * the file layout above for why the order of the writes and forces
+     * matters. The forces are needed for that order, so they do not depend
+     * on DataSource.fileFsync.
+     */
+    private boolean replace(String key, int old, byte[] hash) {
+        int oldPos = position(old);
+        byte[] name = encode(readString(oldPos + NAME_OFFSET), NAME_BYTES);
+        PlayerAuth account = readRecord(old);
+        int current = currentSession(oldPos);
+        int seq = current < 0 ? 1 : buffer.getInt(session(oldPos, current)) + 1;
+        int slot;
+        try {
+            slot = allocateSlot();
+        } catch (IOException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+            return false;
+        }
+        int pos = position(slot);
+        writeRecord(slot, name, hash, seq, encode(account.getIp(), IP_BYTES), account.getLastLogin());
+        buffer.put(pos, PENDING);
+        force(pos, RECORD_SIZE);
+        buffer.put(oldPos, FREE);
+        force(oldPos, 1);
+        buffer.put(pos, USED);
+        if (fsync) {
+            force(pos, 1);
+        }
+        index.put(key, slot);
+        freeSlots.add(old);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean updateSession(PlayerAuth auth) {
+        Integer slot = index.get(auth.getNickname().toLowerCase());
+        byte[] ip = encode(auth.getIp(), IP_BYTES);
+        if (slot == null || ip == null) {
+            return false;
+        }
+
+        int pos = position(slot);
+        int current = currentSession(pos);
+        int seq = current < 0 ? 1 : buffer.getInt(session(pos, current)) + 1;
+        int spos = session(pos, current == 0 ? 1 : 0);
+        writeSession(spos, seq, ip, auth.getLastLogin());
+        if (fsync) {
+            force(spos, SESSION_SIZE);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean updatePassword(PlayerAuth auth) {
+        String key = auth.getNickname().toLowerCase();
+        Integer slot = index.get(key);
+        byte[] hash = encode(auth.getHash(), HASH_BYTES);
+        if (slot == null || hash == null) {
+            return false;
+        }
+        return replace(key, slot, hash);
+    }
+
+    @Override
+    public synchronized int purgeDatabase(long until, PurgeProgress progress) {
+        int cleared = 0;
+        Iterator<Map.Entry<String, Integer>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            int slot = it.next().getValue();
+            int pos = position(slot);
+            if (readLastLogin(pos) < until) {
+                buffer.put(pos, FREE);
+                freeSlots.add(slot);
+                it.remove();
+                cleared++;
+            }
+        }
+        if (fsync && cleared > 0) {
+            buffer.force();
+        }
+        return cleared;
+    }
+
+    @Override
+    public synchronized boolean removeAuth(String user) {
+        Integer slot = index.remove(user.toLowerCase());
+        if (slot == null) {
+            return false;
+        }
+
+        buffer.put(position(slot), FREE);
+        if (fsync) {
+            force(position(slot), 1);
+        }
+        freeSlots.add(slot);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean getAllNames(Collection<String> names) {
+        for (int slot : index.values()) {
+            names.add(readString(position(slot) + NAME_OFFSET));
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        buffer.force();
+        try {
+            raf.close();
+        } catch (IOException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+        }
+        channel = null;
+    }
+
+    @Override
+    public synchronized void reload() {
+        buildIndex();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.datasource;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of names that can give false positives but no false negatives. Bit
+ * positions come from double hashing the two halves of a 64 bit FNV-1a
+ * hash, so adding or checking a name allocates nothing. Checks may run
+ * concurrently with adds. Names cannot be removed; a removed account just
+ * stays a possible positive.
+ */
+final class BloomFilter {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private final AtomicLongArray bits;
+    private final int size;
+    private final int hashes;
+
+    /**
+     * @param expected number of names the filter is sized for
+     * @param fpp false positive probability at that many names
+     */
+    BloomFilter(int expected, double fpp) {
+        int n = Math.max(1, expected);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.size = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, m));
+        this.hashes = Math.max(1, (int) Math.round((double) size / n * Math.log(2)));
+        this.bits = new AtomicLongArray((size + 63) / 64);
+    }
+
+    private static long hash(String name) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    void add(String name) {
+        long h = hash(name);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+            long mask = 1L << bit;
+            long word;
+            do {
+                word = bits.get(bit >>> 6);
+            } while ((word & mask) == 0 && !bits.compareAndSet(bit >>> 6, word, word | mask));
+        }
+    }
+
+    boolean mightContain(String name) {
+        long h = hash(name);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
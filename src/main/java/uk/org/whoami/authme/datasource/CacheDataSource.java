@@ -16,71 +16,439 @@
 
 package uk.org.whoami.authme.datasource;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
 
+import uk.org.whoami.authme.ConsoleLogger;
 import uk.org.whoami.authme.cache.auth.PlayerAuth;
 
+/**
+ * Keeps up to maxSize accounts. Eviction approximates LRU with the CLOCK
+ * algorithm: lookups only set a flag on the entry, and the writer that
+ * pushes the cache over its size walks the insertion queue, giving every
+ * flagged entry a second chance. Entries older than ttl milliseconds are
+ * reloaded from the source; a ttl of 0 keeps them until they are evicted
+ * or invalidated.
+ *
+ * Names the source does not know are remembered for negativeTtl
+ * milliseconds. After {@link #loadNames()} a Bloom filter of all
+ * registered names also answers most lookups of unregistered names
+ * without asking the source at all.
+ *
+ * Lookups take no lock. A lookup that had to load from the source only
+ * keeps its result if that account was not written or invalidated
+ * meanwhile, so a slow load can never bring back an account that was just
+ * changed. Writes to other accounts do not affect it.
+ */
 public class CacheDataSource implements DataSource {
 
+    private static final long NAMES_RELOAD_INTERVAL = 60000;
     private DataSource source;
-    private final HashMap<String, PlayerAuth> cache = new HashMap<String, PlayerAuth>();
+    private final int maxSize;
+    private final long ttl;
+    private final long negativeTtl;
+    private final ConcurrentHashMap<String, CachedAuth> cache = new ConcurrentHashMap<String, CachedAuth>();
+    private final ConcurrentLinkedQueue<CachedAuth> clock = new ConcurrentLinkedQueue<CachedAuth>();
+    private final AtomicInteger clockSize = new AtomicInteger();
+    private final ConcurrentHashMap<String, Long> absent = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentHashMap<String, Loading> loading = new ConcurrentHashMap<String, Loading>();
+    private final AtomicLong epoch = new AtomicLong();
+    private final Object evictLock = new Object();
+    private final Object namesLock = new Object();
+    private final Object loadLock = new Object();
+    private volatile BloomFilter bloom;
+    private volatile boolean namesWanted;
+    private final AtomicLong namesMissed = new AtomicLong();
+    private volatile long namesLoaded;
+    private volatile long lastNamesLoad;
+    private List<String> registeredWhileLoading;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
 
-    public CacheDataSource(DataSource source) {
+    public CacheDataSource(DataSource source, int maxSize, long ttl, long negativeTtl) {
         this.source = source;
+        this.maxSize = Math.max(1, maxSize);
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * Builds the Bloom filter from the names the source holds. Lookups
+     * keep working without it while the names are read. The filter is
+     * sized for twice the current number of accounts, so registrations
+     * during the uptime only slowly raise the false positive rate.
+     */
+    public void loadNames() {
+        namesWanted = true;
+        rebuildNames();
+    }
+
+    /**
+     * Rebuilds the Bloom filter if it could not be loaded or may have missed
+     * registrations, at most once every NAMES_RELOAD_INTERVAL milliseconds.
+     * Until then lookups simply do not use it.
+     */
+    public void loadMissingNames() {
+        if (namesWanted && (bloom == null || namesMissed.get() != namesLoaded)
+                && System.currentTimeMillis() - lastNamesLoad >= NAMES_RELOAD_INTERVAL) {
+            rebuildNames();
+        }
+    }
+
+    /**
+     * Registrations made elsewhere may have been missed, so the Bloom filter
+     * no longer answers lookups until it was rebuilt.
+     */
+    public void namesMissed() {
+        namesMissed.incrementAndGet();
+    }
+
+    // Only one rebuild runs at a time, and lookups keep using the old
+    // filter until the new one is complete. The filter only counts as
+    // fresh if no registration was missed since the rebuild started.
+    private void rebuildNames() {
+        synchronized (loadLock) {
+            lastNamesLoad = System.currentTimeMillis();
+            long missed = namesMissed.get();
+            List<String> loading = new ArrayList<String>();
+            synchronized (namesLock) {
+                registeredWhileLoading = loading;
+            }
+            List<String> all = new ArrayList<String>();
+            if (!source.getAllNames(all)) {
+                synchronized (namesLock) {
+                    registeredWhileLoading = null;
+                }
+                ConsoleLogger.showError("Could not load registered names into the Bloom filter");
+                return;
+            }
+
+            BloomFilter filter = new BloomFilter(Math.max(1024, all.size() * 2), 0.01);
+            for (String name : all) {
+                filter.add(name.toLowerCase());
+            }
+            synchronized (namesLock) {
+                for (String name : loading) {
+                    filter.add(name);
+                }
+                registeredWhileLoading = null;
+                bloom = filter;
+                namesLoaded = missed;
+            }
+            ConsoleLogger.info("Loaded " + all.size() + " registered names into the Bloom filter");
+        }
+    }
+
+    private PlayerAuth cached(String user) {
+        CachedAuth entry = cache.get(user);
+        if (entry == null) {
+            return null;
+        }
+        if (ttl > 0 && System.currentTimeMillis() - entry.loaded >= ttl) {
+            if (cache.remove(user, entry)) {
+                evictions.increment();
+            }
+            return null;
+        }
+        entry.referenced = true;
+        return copy(entry.auth);
+    }
+
+    private boolean isAbsent(String user) {
+        BloomFilter filter = bloom;
+        if (filter != null && namesMissed.get() == namesLoaded && !filter.mightContain(user.toLowerCase())) {
+            return true;
+        }
+        Long until = absent.get(user);
+        if (until == null) {
+            return false;
+        }
+        if (until <= System.currentTimeMillis()) {
+            absent.remove(user, until);
+            return false;
+        }
+        return true;
+    }
+
+    private void put(PlayerAuth auth) {
+        enqueue(store(auth));
+    }
+
+    // Entries are keyed by the lowercase name, like every backend compares
+    // names, and hold their own copy of the account
+    private static String key(String user) {
+        return user.toLowerCase();
+    }
+
+    private static PlayerAuth copy(PlayerAuth auth) {
+        return new PlayerAuth(auth.getNickname(), auth.getHash(), auth.getIp(), auth.getLastLogin());
+    }
+
+    private CachedAuth store(PlayerAuth auth) {
+        CachedAuth entry = new CachedAuth(key(auth.getNickname()), copy(auth), System.currentTimeMillis());
+        cache.put(entry.name, entry);
+        absent.remove(entry.name);
+        return entry;
+    }
+
+    private void putAbsent(String user) {
+        if (storeAbsent(user)) {
+            trimAbsent();
+        }
+    }
+
+    // Returns true if the negative cache has grown too large
+    private boolean storeAbsent(String user) {
+        if (negativeTtl <= 0) {
+            return false;
+        }
+        absent.put(user, System.currentTimeMillis() + negativeTtl);
+        return absent.size() > maxSize;
+    }
+
+    private void enqueue(CachedAuth entry) {
+        clock.add(entry);
+        clockSize.incrementAndGet();
+        if (cache.size() > maxSize || clockSize.get() > 2 * maxSize) {
+            evict();
+        }
+    }
+
+    // Walks the clock from its oldest entry. Entries that were replaced or
+    // removed in the meantime are just dropped from the queue.
+    private void evict() {
+        synchronized (evictLock) {
+            int steps = clockSize.get() * 2;
+            while (steps-- > 0 && (cache.size() > maxSize || clockSize.get() > 2 * maxSize)) {
+                CachedAuth entry = clock.poll();
+                if (entry == null) {
+                    return;
+                }
+                clockSize.decrementAndGet();
+                if (cache.get(entry.name) != entry) {
+                    continue;
+                }
+                if (entry.referenced && cache.size() > maxSize) {
+                    entry.referenced = false;
+                    clock.add(entry);
+                    clockSize.incrementAndGet();
+                } else if (cache.size() > maxSize && cache.remove(entry.name, entry)) {
+                    evictions.increment();
+                } else {
+                    clock.add(entry);
+                    clockSize.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void trimAbsent() {
+        synchronized (evictLock) {
+            long now = System.currentTimeMillis();
+            Iterator<Long> it = absent.values().iterator();
+            while (it.hasNext() && absent.size() > maxSize / 2) {
+                Long until = it.next();
+                if (until <= now || absent.size() > maxSize) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // Called for every name that may have been registered, here or on
+    // another server.
+    private void registered(String user) {
+        absent.remove(user);
+        String key = user.toLowerCase();
+        synchronized (namesLock) {
+            if (bloom != null) {
+                bloom.add(key);
+            }
+            if (registeredWhileLoading != null) {
+                registeredWhileLoading.add(key);
+            }
+        }
+    }
+
+    // Marks a write to one account. Loads of that account that started
+    // before it throw their result away.
+    private void changed(String user) {
+        loading.computeIfPresent(user, new BiFunction<String, Loading, Loading>() {
+
+            @Override
+            public Loading apply(String name, Loading load) {
+                load.version++;
+                return load;
+            }
+        });
+    }
+
+    // Marks a write that may touch any account
+    private void changedAll() {
+        epoch.incrementAndGet();
     }
 
     @Override
-    public synchronized boolean isAuthAvailable(String user) {
-        return cache.containsKey(user) ? true : source.isAuthAvailable(user);
+    public boolean isAuthAvailable(String user) {
+        return getAuth(user) != null;
     }
 
     @Override
-    public synchronized PlayerAuth getAuth(String user) {
-        if(cache.containsKey(user)) {
-            return cache.get(user);
-        } else {
-            PlayerAuth auth = source.getAuth(user);
-            cache.put(user, auth);
+    public PlayerAuth getAuth(String name) {
+        String user = key(name);
+        PlayerAuth auth = cached(user);
+        if (auth != null) {
+            hits.increment();
             return auth;
         }
+        if (isAbsent(user)) {
+            hits.increment();
+            return null;
+        }
+        misses.increment();
+        long epochStamp = epoch.get();
+        final long[] stamp = new long[1];
+        loading.compute(user, new BiFunction<String, Loading, Loading>() {
+
+            @Override
+            public Loading apply(String name, Loading load) {
+                if (load == null) {
+                    load = new Loading();
+                }
+                load.count++;
+                stamp[0] = load.version;
+                return load;
+            }
+        });
+        PlayerAuth loaded = null;
+        boolean answered = false;
+        try {
+            loaded = source.getAuth(name);
+            answered = true;
+        } finally {
+            loaded(user, stamp[0], epochStamp, loaded, answered);
+        }
+        return loaded;
+    }
+
+    // Ends a load. A failed one is not an answer, so nothing is cached for
+    // it, not even as absent.
+    private void loaded(String user, final long stamp, long epochStamp, final PlayerAuth loaded,
+            final boolean answered) {
+        // Stored under the same lock writes take in changed(user), so a
+        // write either comes before the check or after the result is in
+        final CachedAuth[] entry = new CachedAuth[1];
+        final boolean[] trim = new boolean[1];
+        loading.compute(user, new BiFunction<String, Loading, Loading>() {
+
+            @Override
+            public Loading apply(String name, Loading load) {
+                if (answered && load.version == stamp) {
+                    if (loaded != null) {
+                        entry[0] = store(loaded);
+                    } else {
+                        trim[0] = storeAbsent(name);
+                    }
+                }
+                return --load.count == 0 ? null : load;
+            }
+        });
+        if (!answered) {
+            return;
+        }
+        if (epoch.get() != epochStamp) {
+            if (entry[0] != null) {
+                cache.remove(user, entry[0]);
+            } else {
+                absent.remove(user);
+            }
+        } else if (entry[0] != null) {
+            enqueue(entry[0]);
+        } else if (trim[0]) {
+            trimAbsent();
+        }
     }
 
     @Override
-    public synchronized boolean saveAuth(PlayerAuth auth) {
+    public boolean saveAuth(PlayerAuth auth) {
         if (source.saveAuth(auth)) {
-            cache.put(auth.getNickname(), auth);
+            changed(key(auth.getNickname()));
+            registered(key(auth.getNickname()));
+            put(auth);
             return true;
         }
         return false;
     }
 
     @Override
-    public synchronized boolean updatePassword(PlayerAuth auth) {
+    public SaveResult saveAuthIfAbsent(PlayerAuth auth) {
+        if (cached(key(auth.getNickname())) != null) {
+            return SaveResult.DUPLICATE;
+        }
+        SaveResult result = source.saveAuthIfAbsent(auth);
+        if (result == SaveResult.SAVED) {
+            changed(key(auth.getNickname()));
+            registered(key(auth.getNickname()));
+            put(auth);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean updatePassword(final PlayerAuth auth) {
         if (source.updatePassword(auth)) {
-            cache.get(auth.getNickname()).setHash(auth.getHash());
+            changed(key(auth.getNickname()));
+            cache.computeIfPresent(key(auth.getNickname()), new BiFunction<String, CachedAuth, CachedAuth>() {
+
+                @Override
+                public CachedAuth apply(String name, CachedAuth entry) {
+                    PlayerAuth old = entry.auth;
+                    entry.auth = new PlayerAuth(old.getNickname(), auth.getHash(), old.getIp(), old.getLastLogin());
+                    return entry;
+                }
+            });
             return true;
         }
         return false;
     }
 
     @Override
-    public boolean updateSession(PlayerAuth auth) {
+    public boolean updateSession(final PlayerAuth auth) {
         if (source.updateSession(auth)) {
-            cache.get(auth.getNickname()).setIp(auth.getIp());
-            cache.get(auth.getNickname()).setLastLogin(auth.getLastLogin());
+            changed(key(auth.getNickname()));
+            cache.computeIfPresent(key(auth.getNickname()), new BiFunction<String, CachedAuth, CachedAuth>() {
+
+                @Override
+                public CachedAuth apply(String name, CachedAuth entry) {
+                    PlayerAuth old = entry.auth;
+                    entry.auth = new PlayerAuth(old.getNickname(), old.getHash(), auth.getIp(), auth.getLastLogin());
+                    return entry;
+                }
+            });
             return true;
         }
         return false;
     }
 
     @Override
-    public int purgeDatabase(long until) {
-        int cleared = source.purgeDatabase(until);
+    public int purgeDatabase(long until, PurgeProgress progress) {
+        int cleared = source.purgeDatabase(until, progress);
 
         if (cleared > 0) {
-            for (PlayerAuth auth : cache.values()) {
-                if(auth.getLastLogin() < until) {
-                    cache.remove(auth.getNickname());
+            changedAll();
+            Iterator<CachedAuth> it = cache.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().auth.getLastLogin() < until) {
+                    it.remove();
                 }
             }
         }
@@ -88,21 +456,101 @@ public class CacheDataSource implements DataSource {
     }
 
     @Override
-    public synchronized boolean removeAuth(String user) {
+    public boolean removeAuth(String user) {
         if (source.removeAuth(user)) {
-            cache.remove(user);
+            String key = key(user);
+            changed(key);
+            cache.remove(key);
+            putAbsent(key);
             return true;
         }
         return false;
     }
 
     @Override
-    public synchronized void close() {
+    public void close() {
         source.close();
     }
 
+    @Override
+    public boolean getAllNames(Collection<String> names) {
+        return source.getAllNames(names);
+    }
+
     @Override
     public void reload() {
+        changedAll();
         cache.clear();
+        absent.clear();
+        source.reload();
+        if (namesWanted) {
+            // The reloaded source may hold names the filter never saw
+            namesMissed();
+            rebuildNames();
+        }
+    }
+
+    /**
+     * Drops an account that was changed elsewhere. The name may have just
+     * been registered, so it also counts as a possible positive from now
+     * on.
+     */
+    public void invalidate(String user) {
+        String key = key(user);
+        changed(key);
+        cache.remove(key);
+        registered(key);
+    }
+
+    /**
+     * Drops every cached answer. The Bloom filter is kept, call
+     * {@link #namesMissed()} if registrations may have been missed.
+     */
+    public void invalidateAll() {
+        changedAll();
+        cache.clear();
+        absent.clear();
+    }
+
+    public int getSize() {
+        return cache.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    // Loads of one account in flight, and the writes to it since the
+    // first of them started. Only changed inside loading.compute.
+    private static class Loading {
+
+        private int count;
+        private long version;
+    }
+
+    private static class CachedAuth {
+
+        private final String name;
+        private final long loaded;
+        private volatile PlayerAuth auth;
+        private volatile boolean referenced;
+
+        private CachedAuth(String name, PlayerAuth auth, long loaded) {
+            this.name = name;
+            this.auth = auth;
+            this.loaded = loaded;
+        }
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.datasource;
+
+import java.util.Collection;
+
+/**
+ * A backend shared by several servers that records which accounts were
+ * changed, so each server can drop those accounts from its cache.
+ */
+public interface ChangeLog {
+
+    /**
+     * Recorded instead of a name when many accounts changed at once.
+     */
+    public static final String ALL = "*";
+
+    /**
+     * @return the id of the newest change, 0 if there is none, -1 on error
+     */
+    long getLatestChange();
+
+    /**
+     * @return the step between two consecutive change ids
+     */
+    int getIdIncrement();
+
+    /**
+     * Reads the changes after the given id, plus the ones with the ids in
+     * gaps. Ids are handed out before a change commits, so a change can show
+     * up after changes with higher ids. The ids of all changes read are
+     * added to ids, ordered, and the names changed by other servers to names.
+     *
+     * @return false on error
+     */
+    boolean readChanges(long after, Collection<Long> gaps, Collection<Long> ids, Collection<String> names);
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.datasource;
+
+import uk.org.whoami.authme.ConsoleLogger;
+
+/**
+ * Stops calling a backend that keeps failing. After a number of
+ * consecutive failures the circuit opens and calls fail immediately. Once
+ * the open period is over a background probe half-opens it and closes it
+ * again if the backend answers.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Thrown instead of waiting for a connection while the circuit is open.
+     */
+    public static class OpenException extends MiniConnectionPoolManager.TimeoutException {
+
+        private static final long serialVersionUID = 1;
+
+        public OpenException() {
+            super("Database unavailable, circuit breaker is open");
+        }
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMs;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    public CircuitBreaker(String name, int failureThreshold, long openMs) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMs = openMs;
+    }
+
+    public synchronized boolean allowRequest() {
+        return state == State.CLOSED;
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+        if (state != State.CLOSED) {
+            state = State.CLOSED;
+            ConsoleLogger.info(name + " is reachable again, circuit closed");
+        }
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                ConsoleLogger.showError(name + " failed " + failures + " times in a row, circuit opened");
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Moves an open circuit to half-open once the open period is over.
+     *
+     * @return true if the caller should probe the backend now
+     */
+    public synchronized boolean tryProbe() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMs) {
+            state = State.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+}
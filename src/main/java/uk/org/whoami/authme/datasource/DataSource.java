@@ -16,29 +16,71 @@
 
 package uk.org.whoami.authme.datasource;
 
+import java.util.Collection;
+
 import uk.org.whoami.authme.cache.auth.PlayerAuth;
 
 public interface DataSource {
 
     public enum DataSourceType {
 
-        MYSQL, FILE
+        MYSQL, FILE, BINARY, SQLITE
     }
 
+    public enum SaveResult {
+
+        SAVED, DUPLICATE, FAILED
+    }
+
+    /**
+     * Told how many accounts a chunked purge has deleted so far.
+     */
+    public interface PurgeProgress {
+
+        void purged(int total);
+    }
+
+    /**
+     * @throws DataSourceException if the backend could not be asked
+     */
     boolean isAuthAvailable(String user);
 
+    /**
+     * Looks up an account in a single call. Callers that need the account
+     * should use this instead of checking isAuthAvailable first.
+     *
+     * @return the account or null if it is not registered
+     * @throws DataSourceException if the backend could not be asked
+     */
     PlayerAuth getAuth(String user);
 
     boolean saveAuth(PlayerAuth auth);
 
+    /**
+     * Inserts the account unless the name is already registered. The check
+     * and the insert happen atomically in the backend.
+     */
+    SaveResult saveAuthIfAbsent(PlayerAuth auth);
+
     boolean updateSession(PlayerAuth auth);
 
     boolean updatePassword(PlayerAuth auth);
 
-    int purgeDatabase(long until);
+    /**
+     * @param progress told about intermediate totals by backends that purge
+     *        in several steps, may be null
+     */
+    int purgeDatabase(long until, PurgeProgress progress);
 
     boolean removeAuth(String user);
 
+    /**
+     * Adds the names of all registered accounts to the collection.
+     *
+     * @return false if the names could not be read
+     */
+    boolean getAllNames(Collection<String> names);
+
     void close();
 
     void reload();
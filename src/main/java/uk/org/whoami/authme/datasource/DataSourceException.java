@@ -0,0 +1,34 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.datasource;
+
+/**
+ * Thrown by a lookup that could not reach the backend. A lookup never
+ * returns null on an error, null always means the name is not registered.
+ */
+public class DataSourceException extends RuntimeException {
+
+    private static final long serialVersionUID = 1;
+
+    public DataSourceException(String message) {
+        super(message);
+    }
+
+    public DataSourceException(Throwable cause) {
+        super(cause.getMessage(), cause);
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.datasource;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import uk.org.whoami.authme.ConsoleLogger;
+import uk.org.whoami.authme.cache.auth.PlayerAuth;
+import uk.org.whoami.authme.datasource.MiniConnectionPoolManager.TimeoutException;
+import uk.org.whoami.authme.settings.Settings;
+
+/**
+ * Keeps MySQL logins working through outages. Every account read from or
+ * written to MySQL is mirrored into a local {@link FileDataSource}. While
+ * the circuit breaker of the primary is not closed, lookups are answered
+ * from that replica and writes are applied to it and appended to a
+ * {@link WriteQueue}, which {@link #replay(Collection)} sends to MySQL in order once
+ * the primary is back. Writes for an account with queued entries are
+ * queued as well, so they never overtake older ones.
+ *
+ * Registrations made during an outage are only checked against the
+ * replica, which only knows the accounts this server has seen. One that
+ * collides with an existing MySQL account is dropped on replay together
+ * with every write queued after it for that name, since those were made by
+ * whoever owned the outage registration and not by the account owner. The
+ * name is then in conflict: writes for it are refused until
+ * {@link #resolveConflict(String)} is called, which the plugin does once
+ * the player holding the outage account is off the server.
+ */
+public class FallbackDataSource implements DataSource, ChangeLog {
+
+    private final MySQLDataSource source;
+    private final CircuitBreaker breaker;
+    private final FileDataSource replica;
+    private final WriteQueue queue;
+    private final Set<String> conflicts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public FallbackDataSource(MySQLDataSource source) throws IOException {
+        this.source = source;
+        this.breaker = source.getCircuitBreaker();
+        this.replica = new FileDataSource(new File(Settings.MYSQL_REPLICA_FILE));
+        this.queue = new WriteQueue(new File(Settings.MYSQL_QUEUE_FILE));
+        if (!queue.isEmpty()) {
+            ConsoleLogger.info(queue.size() + " queued writes will be sent to MySQL once it is reachable");
+        }
+    }
+
+    private boolean isDown() {
+        return breaker.getState() != CircuitBreaker.State.CLOSED;
+    }
+
+    private boolean isDirect(String user) {
+        return !isDown() && !queue.contains(user);
+    }
+
+    private boolean inConflict(String user) {
+        if (conflicts.contains(user.toLowerCase())) {
+            ConsoleLogger.showError("Refusing a write for " + user + ", its outage registration clashed with MySQL");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Lifts the write lock on a name that was in conflict after replay.
+     */
+    public void resolveConflict(String user) {
+        conflicts.remove(user.toLowerCase());
+    }
+
+    private void mirror(PlayerAuth auth) {
+        PlayerAuth local = replica.getAuth(auth.getNickname());
+        if (local == null) {
+            replica.saveAuth(auth);
+            return;
+        }
+        if (!local.getHash().equals(auth.getHash())) {
+            replica.updatePassword(auth);
+        }
+        if (!local.getIp().equals(auth.getIp()) || local.getLastLogin() != auth.getLastLogin()) {
+            replica.updateSession(auth);
+        }
+    }
+
+    @Override
+    public boolean isAuthAvailable(String user) {
+        return getAuth(user) != null;
+    }
+
+    @Override
+    public PlayerAuth getAuth(String user) {
+        if (!isDirect(user)) {
+            return local(user);
+        }
+        PlayerAuth auth;
+        try {
+            auth = source.getAuth(user);
+        } catch (DataSourceException ex) {
+            return local(user);
+        }
+        if (auth != null) {
+            mirror(auth);
+            return auth;
+        }
+
+        // null may come from a read replica that has not caught up, so the
+        // local copy only goes if the primary confirms the miss
+        PlayerAuth local = replica.getAuth(user);
+        if (local == null) {
+            return null;
+        }
+        try {
+            auth = source.getAuthFromPrimary(user);
+        } catch (SQLException ex) {
+            return local;
+        } catch (TimeoutException ex) {
+            return local;
+        }
+        if (auth != null) {
+            mirror(auth);
+            return auth;
+        }
+        replica.removeAuth(user);
+        return null;
+    }
+
+    // The local copy only holds accounts seen since it was created, so a
+    // miss there says nothing while MySQL cannot be asked. Names with
+    // queued writes are always in it.
+    private PlayerAuth local(String user) {
+        PlayerAuth auth = replica.getAuth(user);
+        if (auth == null && !queue.contains(user)) {
+            throw new DataSourceException("MySQL is unreachable and " + user + " has no local copy");
+        }
+        return auth;
+    }
+
+    @Override
+    public boolean saveAuth(PlayerAuth auth) {
+        return saveAuthIfAbsent(auth) == SaveResult.SAVED;
+    }
+
+    @Override
+    public SaveResult saveAuthIfAbsent(PlayerAuth auth) {
+        if (isDirect(auth.getNickname())) {
+            SaveResult result = source.saveAuthIfAbsent(auth);
+            if (result == SaveResult.SAVED) {
+                mirror(auth);
+            }
+            if (result != SaveResult.FAILED || !isDown()) {
+                return result;
+            }
+        }
+        if (replica.isAuthAvailable(auth.getNickname())) {
+            return SaveResult.DUPLICATE;
+        }
+        if (!queue.add(WriteQueue.Op.SAVE, auth)) {
+            return SaveResult.FAILED;
+        }
+        replica.saveAuth(auth);
+        return SaveResult.SAVED;
+    }
+
+    @Override
+    public boolean updatePassword(PlayerAuth auth) {
+        if (inConflict(auth.getNickname())) {
+            return false;
+        }
+        if (isDirect(auth.getNickname())) {
+            if (source.updatePassword(auth)) {
+                replica.updatePassword(auth);
+                return true;
+            }
+            if (!isDown()) {
+                return false;
+            }
+        }
+        if (!queue.add(WriteQueue.Op.PASSWORD, auth)) {
+            return false;
+        }
+        replica.updatePassword(auth);
+        return true;
+    }
+
+    @Override
+    public boolean updateSession(PlayerAuth auth) {
+        if (inConflict(auth.getNickname())) {
+            return false;
+        }
+        // Not batched: an update that only sits in memory is lost if the
+        // server stops before MySQL is back, so a failed one is queued
+        if (isDirect(auth.getNickname())) {
+            if (source.updateSessionNow(auth)) {
+                replica.updateSession(auth);
+                return true;
+            }
+            if (source.wasRejected()) {
+                return false;
+            }
+        }
+        if (!queue.add(WriteQueue.Op.SESSION, auth)) {
+            return false;
+        }
+        replica.updateSession(auth);
+        return true;
+    }
+
+    @Override
+    public boolean removeAuth(String user) {
+        if (inConflict(user)) {
+            return false;
+        }
+        PlayerAuth auth = new PlayerAuth(user, "", "", 0);
+        if (isDirect(user)) {
+            if (source.removeAuth(user)) {
+                replica.removeAuth(user);
+                return true;
+            }
+            if (!isDown()) {
+                return false;
+            }
+        }
+        if (!queue.add(WriteQueue.Op.REMOVE, auth)) {
+            return false;
+        }
+        replica.removeAuth(user);
+        return true;
+    }
+
+    @Override
+    public int purgeDatabase(long until, PurgeProgress progress) {
+        if (isDown()) {
+            ConsoleLogger.showError("MySQL is unreachable, purge skipped");
+            return 0;
+        }
+        int cleared = source.purgeDatabase(until, progress);
+        replica.purgeDatabase(until, null);
+        return cleared;
+    }
+
+    // The replica adds every account seen recently, including registrations
+    // that are still queued. Names it holds that MySQL no longer has are
+    // harmless extras.
+    @Override
+    public boolean getAllNames(Collection<String> names) {
+        if (isDown()) {
+            return false;
+        }
+        return source.getAllNames(names) && replica.getAllNames(names);
+    }
+
+    /**
+     * Sends queued writes to MySQL in order. Stops at the first write that
+     * fails for a reason a retry may fix and keeps it for the next run;
+     * only writes MySQL rejects outright, e.g. for a constraint violation,
+     * are dropped so they cannot block the queue.
+     *
+     * @param conflicting receives the names whose outage registration
+     *        clashed with an existing account
+     */
+    public synchronized void replay(Collection<String> conflicting) {
+        if (queue.isEmpty() || isDown()) {
+            return;
+        }
+        int replayed = 0;
+        try {
+            WriteQueue.Entry entry;
+            while ((entry = queue.peek()) != null) {
+                String name = entry.auth.getNickname();
+                source.wasRejected();
+                SaveResult result = apply(entry);
+                if (result == SaveResult.DUPLICATE) {
+                    int dropped = queue.removeAll(name);
+                    conflicts.add(name.toLowerCase());
+                    conflicting.add(name);
+                    replica.removeAuth(name);
+                    ConsoleLogger.showError("Account " + name + " registered during the outage already exists in MySQL,"
+                            + " dropped it and " + (dropped - 1) + " writes queued after it");
+                    continue;
+                }
+                if (result == SaveResult.FAILED) {
+                    if (!source.wasRejected()) {
+                        break;
+                    }
+                    ConsoleLogger.showError("MySQL rejected a queued " + entry.op.name().toLowerCase()
+                            + " of " + name + ", dropping it");
+                }
+                queue.remove();
+                replayed++;
+            }
+        } finally {
+            queue.persist();
+        }
+        ConsoleLogger.info("Replayed " + replayed + " queued writes to MySQL, " + queue.size() + " left");
+    }
+
+    private SaveResult apply(WriteQueue.Entry entry) {
+        PlayerAuth auth = entry.auth;
+        boolean applied = true;
+        switch (entry.op) {
+            case SAVE:
+                return source.saveAuthIfAbsent(auth);
+            case PASSWORD:
+                applied = source.updatePassword(auth);
+                break;
+            case SESSION:
+                applied = source.updateSessionNow(auth);
+                break;
+            case REMOVE:
+                applied = source.removeAuth(auth.getNickname());
+                break;
+        }
+        return applied ? SaveResult.SAVED : SaveResult.FAILED;
+    }
+
+    @Override
+    public long getLatestChange() {
+        return source.getLatestChange();
+    }
+
+    @Override
+    public int getIdIncrement() {
+        return source.getIdIncrement();
+    }
+
+    @Override
+    public boolean readChanges(long after, Collection<Long> gaps, Collection<Long> ids, Collection<String> names) {
+        return source.readChanges(after, gaps, ids, names);
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    @Override
+    public void close() {
+        source.close();
+        replica.close();
+        queue.persist();
+        if (!queue.isEmpty()) {
+            ConsoleLogger.info(queue.size() + " queued writes are kept for the next start");
+        }
+    }
+
+    @Override
+    public void reload() {
+        source.reload();
+        replica.reload();
+    }
+}
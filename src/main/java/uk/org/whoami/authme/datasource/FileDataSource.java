@@ -16,14 +16,21 @@
 
 package uk.org.whoami.authme.datasource;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import uk.org.whoami.authme.ConsoleLogger;
 import uk.org.whoami.authme.cache.auth.PlayerAuth;
@@ -39,278 +46,527 @@ public class FileDataSource implements DataSource {
      * PLAYERNAME:HASHSUM:IP
      * PLAYERNAME:HASHSUM
      *
+     * The file is an append-only journal. Every change appends a full
+     * record and a line holding only PLAYERNAME removes the account. On
+     * load later lines win over earlier ones. Once enough records are dead
+     * the file is compacted in the background.
+     *
+     * Session updates are queued and written in one batch per flush
+     * interval; every other change flushes the queue together with its own
+     * record, so the journal order always matches the order of the calls.
+     * The writer thread takes the batch out of the queue under the lock but
+     * writes and syncs it without holding it, so lookups do not wait for
+     * the disk. Every other write waits for that batch first.
+     *
+     * Full rewrites (compaction and purge) are streamed into a .tmp file
+     * next to the journal, synced and then atomically renamed over it, so a
+     * crash leaves either the old or the new file behind.
      */
+    private static final int COMPACTION_MIN_DEAD = 1000;
+    private static final long SHUTDOWN_WAIT = 5000;
     private File source;
+    private File compactTarget;
+    private HashMap<String, PlayerAuth> auths = new HashMap<String, PlayerAuth>();
+    private double compactionRatio;
+    private int records;
+    private int deadRecords;
+    private Thread compactor;
+    private StringBuilder backlog;
+    private int backlogRecords;
+    private StringBuilder pending = new StringBuilder();
+    private int pendingRecords;
+    private long flushInterval;
+    private boolean fsync;
+    private Thread writer;
+    private boolean writing;
+    private boolean closing;
 
     public FileDataSource() throws IOException {
-        source = new File(Settings.AUTH_FILE);
+        this(new File(Settings.AUTH_FILE));
+    }
+
+    FileDataSource(File source) throws IOException {
+        Settings settings = Settings.getInstance();
+        this.source = source;
         source.createNewFile();
+        compactTarget = new File(source.getPath() + ".tmp");
+        if (compactTarget.delete()) {
+            ConsoleLogger.info("Removed an unfinished rewrite of " + source.getName());
+        }
+        compactionRatio = settings.getFileCompactionRatio();
+        flushInterval = settings.getFileFlushInterval();
+        fsync = settings.isFileFsyncEnabled();
+        load();
+        if (flushInterval > 0) {
+            startWriter();
+        }
     }
 
-    @Override
-    public synchronized boolean isAuthAvailable(String user) {
-        BufferedReader br = null;
-        try {
-            br = new BufferedReader(new FileReader(source));
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] args = line.split(":");
-                if (args.length > 1 && args[0].equals(user)) {
-                    return true;
+    private void startWriter() {
+        writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    String batch;
+                    int count;
+                    synchronized (FileDataSource.this) {
+                        if (closing) {
+                            return;
+                        }
+                        try {
+                            FileDataSource.this.wait(flushInterval);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        if (closing || pending.length() == 0) {
+                            continue;
+                        }
+                        batch = pending.toString();
+                        count = pendingRecords;
+                        pending.setLength(0);
+                        pendingRecords = 0;
+                        writing = true;
+                    }
+
+                    boolean written = write(source, batch, fsync);
+                    synchronized (FileDataSource.this) {
+                        if (written) {
+                            written(batch, count);
+                        } else {
+                            pending.insert(0, batch);
+                            pendingRecords += count;
+                        }
+                        writing = false;
+                        FileDataSource.this.notifyAll();
+                    }
                 }
             }
-        } catch (FileNotFoundException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return false;
-        } catch (IOException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return false;
-        } finally {
-            if (br != null) {
+        }, "AuthMe-FileWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private synchronized void load() throws IOException {
+        HashMap<String, PlayerAuth> loaded = new HashMap<String, PlayerAuth>();
+        records = replay(source, loaded);
+        auths = loaded;
+        deadRecords = records - loaded.size();
+        ConsoleLogger.info("Loaded " + auths.size() + " accounts from " + source.getName());
+    }
+
+    /**
+     * Returns the live accounts of a journal file in the layout described
+     * above.
+     */
+    static Collection<PlayerAuth> readAll(File file) throws IOException {
+        HashMap<String, PlayerAuth> loaded = new HashMap<String, PlayerAuth>();
+        replay(file, loaded);
+        return loaded.values();
+    }
+
+    private static int replay(File file, Map<String, PlayerAuth> loaded) throws IOException {
+        int lines = 0;
+        AuthRecordReader reader = new AuthRecordReader(new FileReader(file));
+        try {
+            while (reader.next()) {
+                lines++;
+                if (reader.isTombstone()) {
+                    loaded.remove(reader.getField(0).toLowerCase());
+                    continue;
+                }
                 try {
-                    br.close();
-                } catch (IOException ex) {
+                    PlayerAuth auth = reader.toAuth();
+                    if (auth != null) {
+                        loaded.put(auth.getNickname().toLowerCase(), auth);
+                    }
+                } catch (NumberFormatException ex) {
+                    ConsoleLogger.showError("Skipping malformed line for " + reader.getField(0) + " in " + file.getName());
                 }
             }
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ex) {
+            }
         }
-        return false;
+        return lines;
     }
 
-    @Override
-    public synchronized boolean saveAuth(PlayerAuth auth) {
-        if (isAuthAvailable(auth.getNickname())) {
+    private static String toLine(PlayerAuth auth) {
+        return auth.getNickname() + ":" + auth.getHash() + ":" + auth.getIp() + ":" + auth.getLastLogin() + "\n";
+    }
+
+    private static PlayerAuth copy(PlayerAuth auth) {
+        return new PlayerAuth(auth.getNickname(), auth.getHash(), auth.getIp(), auth.getLastLogin());
+    }
+
+    private boolean append(String lines, int count) {
+        int mark = pending.length();
+        pending.append(lines);
+        pendingRecords += count;
+        if (!flush()) {
+            pending.setLength(mark);
+            pendingRecords -= count;
             return false;
         }
+        return true;
+    }
 
-        BufferedWriter bw = null;
-        try {
-            bw = new BufferedWriter(new FileWriter(source, true));
-            bw.write(auth.getNickname() + ":" + auth.getHash() + ":" + auth.getIp() + ":" + auth.getLastLogin() + "\n");
-        } catch (IOException ex) {
-            ConsoleLogger.showError(ex.getMessage());
+    private void queue(String line) {
+        pending.append(line);
+        pendingRecords++;
+        if (writer == null) {
+            flush();
+        }
+    }
+
+    private boolean flush() {
+        if (pending.length() == 0) {
+            return true;
+        }
+
+        String batch = pending.toString();
+        if (!write(source, batch, fsync)) {
             return false;
-        } finally {
-            if (bw != null) {
-                try {
-                    bw.close();
-                } catch (IOException ex) {
-                }
-            }
         }
+        written(batch, pendingRecords);
+        pending.setLength(0);
+        pendingRecords = 0;
         return true;
     }
 
-    @Override
-    public synchronized boolean updatePassword(PlayerAuth auth) {
-        if (!isAuthAvailable(auth.getNickname())) {
-            return false;
+    private void written(String batch, int count) {
+        if (backlog != null) {
+            backlog.append(batch);
+            backlogRecords += count;
         }
+    }
 
-        PlayerAuth newAuth = null;
+    /**
+     * Waits until the writer thread has finished the batch it took out of
+     * the queue. Callers hold the lock from here until their own write, so
+     * the writer cannot take another batch in between.
+     */
+    private synchronized void awaitWriter() {
+        while (writing) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
 
-        BufferedReader br = null;
+    private boolean write(File target, String data, boolean sync) {
+        FileOutputStream fos = null;
         try {
-            br = new BufferedReader(new FileReader(source));
-            String line = "";
-            while ((line = br.readLine()) != null) {
-                String[] args = line.split(":");
-                if (args[0].equals(auth.getNickname())) {
-                    newAuth = new PlayerAuth(args[0], auth.getHash(), args[2], Long.parseLong(args[3]));
-                    break;
-                }
+            fos = new FileOutputStream(target, true);
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos));
+            bw.write(data);
+            bw.flush();
+            if (sync) {
+                fos.getFD().sync();
             }
-        } catch (FileNotFoundException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return false;
         } catch (IOException ex) {
             ConsoleLogger.showError(ex.getMessage());
             return false;
         } finally {
-            if (br != null) {
+            if (fos != null) {
                 try {
-                    br.close();
+                    fos.close();
                 } catch (IOException ex) {
                 }
             }
         }
-        removeAuth(auth.getNickname());
-        saveAuth(newAuth);
         return true;
     }
 
-    @Override
-    public boolean updateSession(PlayerAuth auth) {
-        if (!isAuthAvailable(auth.getNickname())) {
-            return false;
+    private void maybeCompact() {
+        if (compactor != null || deadRecords < COMPACTION_MIN_DEAD || deadRecords < records * compactionRatio) {
+            return;
         }
 
-        PlayerAuth newAuth = null;
+        final List<PlayerAuth> snapshot = new ArrayList<PlayerAuth>(auths.values());
+        backlog = new StringBuilder();
+        backlogRecords = 0;
+        compactor = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                compact(snapshot);
+            }
+        }, "AuthMe-Compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
 
-        BufferedReader br = null;
+    private void compact(List<PlayerAuth> snapshot) {
+        boolean written = writeRecords(compactTarget, snapshot, Long.MIN_VALUE);
+        synchronized (this) {
+            try {
+                awaitWriter();
+                if (written && appendBacklog() && replaceSource()) {
+                    records = snapshot.size() + backlogRecords + pendingRecords;
+                    deadRecords = records - auths.size();
+                    ConsoleLogger.info("Compacted " + source.getName() + " to " + records + " records");
+                } else {
+                    compactTarget.delete();
+                }
+            } finally {
+                backlog = null;
+                backlogRecords = 0;
+                compactor = null;
+                notifyAll();
+            }
+        }
+    }
+
+    private boolean writeRecords(File target, Collection<PlayerAuth> snapshot, long until) {
+        FileOutputStream fos = null;
         try {
-            br = new BufferedReader(new FileReader(source));
-            String line = "";
-            while ((line = br.readLine()) != null) {
-                String[] args = line.split(":");
-                if (args[0].equals(auth.getNickname())) {
-                    newAuth = new PlayerAuth(args[0], args[1], auth.getIp(), auth.getLastLogin());
-                    break;
+            fos = new FileOutputStream(target);
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos));
+            for (PlayerAuth auth : snapshot) {
+                if (auth.getLastLogin() >= until) {
+                    bw.write(toLine(auth));
                 }
             }
-        } catch (FileNotFoundException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return false;
+            bw.flush();
+            fos.getFD().sync();
         } catch (IOException ex) {
             ConsoleLogger.showError(ex.getMessage());
             return false;
         } finally {
-            if (br != null) {
+            if (fos != null) {
                 try {
-                    br.close();
+                    fos.close();
                 } catch (IOException ex) {
                 }
             }
         }
-        removeAuth(auth.getNickname());
-        saveAuth(newAuth);
         return true;
     }
 
-    @Override
-    public int purgeDatabase(long until) {
-        BufferedReader br = null;
-        BufferedWriter bw = null;
-        ArrayList<String> lines = new ArrayList<String>();
-        int cleared = 0;
+    private boolean appendBacklog() {
+        if (backlog == null || backlog.length() == 0) {
+            return true;
+        }
+        return write(compactTarget, backlog.toString(), true);
+    }
 
+    private boolean replaceSource() {
         try {
-            br = new BufferedReader(new FileReader(source));
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] args = line.split(":");
-                if (args.length == 4) {
-                    if (Long.parseLong(args[3]) >= until) {
-                        lines.add(line);
-                        continue;
-                    }
-                }
-                cleared++;
+            try {
+                Files.move(compactTarget.toPath(), source.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(compactTarget.toPath(), source.toPath(), StandardCopyOption.REPLACE_EXISTING);
             }
-
-            bw = new BufferedWriter(new FileWriter(source));
-            for (String l : lines) {
-                bw.write(l + "\n");
-            }
-        } catch (FileNotFoundException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return cleared;
+            return true;
         } catch (IOException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return cleared;
-        } finally {
-            if (br != null) {
-                try {
-                    br.close();
-                } catch (IOException ex) {
-                }
+            ConsoleLogger.showError("Could not replace " + source.getName() + ": " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Waits until neither the writer thread nor a compaction is busy, or
+     * until the deadline has passed. Both can start while the lock is
+     * released in wait(), so they are checked together: waiting for one
+     * and then the other lets a compaction start in between.
+     *
+     * @return true if both are idle
+     */
+    private synchronized boolean awaitIdle(long deadline) {
+        while (writing || compactor != null) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
             }
-            if (bw != null) {
-                try {
-                    bw.close();
-                } catch (IOException ex) {
-                }
+            try {
+                wait(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
             }
         }
-        return cleared;
+        return true;
     }
 
     @Override
-    public synchronized boolean removeAuth(String user) {
-        if (!isAuthAvailable(user)) {
+    public synchronized boolean isAuthAvailable(String user) {
+        return auths.containsKey(user.toLowerCase());
+    }
+
+    @Override
+    public synchronized boolean saveAuth(PlayerAuth auth) {
+        return saveAuthIfAbsent(auth) == SaveResult.SAVED;
+    }
+
+    @Override
+    public synchronized SaveResult saveAuthIfAbsent(PlayerAuth auth) {
+        awaitWriter();
+        String key = auth.getNickname().toLowerCase();
+        if (auths.containsKey(key)) {
+            return SaveResult.DUPLICATE;
+        }
+
+        if (!append(toLine(auth), 1)) {
+            return SaveResult.FAILED;
+        }
+        auths.put(key, copy(auth));
+        records++;
+        return SaveResult.SAVED;
+    }
+
+    @Override
+    public synchronized boolean updatePassword(PlayerAuth auth) {
+        awaitWriter();
+        PlayerAuth old = auths.get(auth.getNickname().toLowerCase());
+        if (old == null) {
             return false;
         }
 
-        BufferedReader br = null;
-        BufferedWriter bw = null;
-        ArrayList<String> lines = new ArrayList<String>();
-        try {
-            br = new BufferedReader(new FileReader(source));
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] args = line.split(":");
-                if (args.length > 1 && !args[0].equals(user)) {
-                    lines.add(line);
-                }
+        PlayerAuth newAuth = new PlayerAuth(old.getNickname(), auth.getHash(), old.getIp(), old.getLastLogin());
+        if (!append(toLine(newAuth), 1)) {
+            return false;
+        }
+        replace(newAuth);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean updateSession(PlayerAuth auth) {
+        PlayerAuth old = auths.get(auth.getNickname().toLowerCase());
+        if (old == null) {
+            return false;
+        }
+
+        PlayerAuth newAuth = new PlayerAuth(old.getNickname(), old.getHash(), auth.getIp(), auth.getLastLogin());
+        queue(toLine(newAuth));
+        replace(newAuth);
+        return true;
+    }
+
+    private void replace(PlayerAuth auth) {
+        auths.put(auth.getNickname().toLowerCase(), auth);
+        records++;
+        deadRecords++;
+        maybeCompact();
+    }
+
+    @Override
+    public synchronized int purgeDatabase(long until, PurgeProgress progress) {
+        // Nothing can start a compaction from here on, the lock is held
+        // until the purged file is in place
+        awaitIdle(Long.MAX_VALUE);
+        int cleared = 0;
+        for (PlayerAuth auth : auths.values()) {
+            if (auth.getLastLogin() < until) {
+                cleared++;
             }
+        }
+        if (cleared == 0) {
+            return 0;
+        }
 
-            bw = new BufferedWriter(new FileWriter(source));
-            for (String l : lines) {
-                bw.write(l + "\n");
+        if (!writeRecords(compactTarget, auths.values(), until) || !replaceSource()) {
+            compactTarget.delete();
+            return 0;
+        }
+        Iterator<PlayerAuth> it = auths.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getLastLogin() < until) {
+                it.remove();
             }
-        } catch (FileNotFoundException ex) {
-            ConsoleLogger.showError(ex.getMessage());
+        }
+        // the rewritten file already holds every queued session update
+        pending.setLength(0);
+        pendingRecords = 0;
+        records = auths.size();
+        deadRecords = 0;
+        return cleared;
+    }
+
+    @Override
+    public synchronized boolean removeAuth(String user) {
+        awaitWriter();
+        String key = user.toLowerCase();
+        PlayerAuth old = auths.get(key);
+        if (old == null) {
             return false;
-        } catch (IOException ex) {
-            ConsoleLogger.showError(ex.getMessage());
+        }
+
+        if (!append(old.getNickname() + "\n", 1)) {
             return false;
-        } finally {
-            if (br != null) {
-                try {
-                    br.close();
-                } catch (IOException ex) {
-                }
-            }
-            if (bw != null) {
-                try {
-                    bw.close();
-                } catch (IOException ex) {
-                }
-            }
         }
+        auths.remove(key);
+        records++;
+        deadRecords += 2;
+        maybeCompact();
         return true;
     }
 
     @Override
     public synchronized PlayerAuth getAuth(String user) {
-        BufferedReader br = null;
-        try {
-            br = new BufferedReader(new FileReader(source));
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] args = line.split(":");
-                if (args[0].equals(user)) {
-                    switch (args.length) {
-                        case 2:
-                            return new PlayerAuth(args[0], args[1], "198.18.0.1", 0);
-                        case 3:
-                            return new PlayerAuth(args[0], args[1], args[2], 0);
-                        case 4:
-                            return new PlayerAuth(args[0], args[1], args[2], Long.parseLong(args[3]));
-                    }
-                }
-            }
-        } catch (FileNotFoundException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return null;
-        } catch (IOException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return null;
-        } finally {
-            if (br != null) {
-                try {
-                    br.close();
-                } catch (IOException ex) {
-                }
-            }
+        PlayerAuth auth = auths.get(user.toLowerCase());
+        return auth != null ? copy(auth) : null;
+    }
+
+    @Override
+    public synchronized boolean getAllNames(Collection<String> names) {
+        for (PlayerAuth auth : auths.values()) {
+            names.add(auth.getNickname());
         }
-        return null;
+        return true;
     }
 
     @Override
-    public synchronized void close() {
+    public void close() {
+        long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT;
+        Thread w;
+        synchronized (this) {
+            closing = true;
+            w = writer;
+            writer = null;
+            notifyAll();
+        }
+        if (w != null) {
+            try {
+                w.join(SHUTDOWN_WAIT);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        shutdown(deadline);
+    }
+
+    private synchronized void shutdown(long deadline) {
+        if (!awaitIdle(deadline)) {
+            // writing now would interleave with the stuck write
+            ConsoleLogger.showError("Timed out writing " + source.getName() + ", " + pendingRecords
+                    + " queued session updates are lost");
+            return;
+        }
+        if (!flush()) {
+            ConsoleLogger.showError("Could not write " + pendingRecords + " queued session updates to " + source.getName());
+        }
+        if (deadRecords > 0) {
+            // leave a plain one-record-per-account file behind on shutdown
+            compact(new ArrayList<PlayerAuth>(auths.values()));
+        }
     }
 
     @Override
-    public void reload() {
+    public synchronized void reload() {
+        awaitIdle(Long.MAX_VALUE);
+        flush();
+        try {
+            load();
+        } catch (IOException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+        }
     }
 }
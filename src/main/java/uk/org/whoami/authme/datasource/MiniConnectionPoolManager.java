@@ -18,6 +18,8 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import javax.sql.ConnectionEvent;
 import javax.sql.ConnectionEventListener;
@@ -41,6 +43,10 @@ private long                           timeoutMs;
 private PrintWriter                    logWriter;
 private Semaphore                      semaphore;
 private LinkedList<PooledConnection>   recycledConnections;
+private HashMap<PooledConnection,Long> idleSince;
+private HashMap<PooledConnection,Long> checkedAt;
+private HashMap<PooledConnection,Long> keptAlive;
+private long                           validationIdleMs;
 private int                            activeConnections;
 private PoolConnectionEventListener    poolConnectionEventListener;
 private boolean                        isDisposed;
@@ -57,6 +63,16 @@ public static class TimeoutException extends RuntimeException {
    public TimeoutException (String msg) {
       super(msg); }}
 
+/**
+* Thrown by {@link #getValidConnection(long, boolean)} when a new connection
+* could not be opened and the caller asked not to retry.
+*/
+public static class ConnectException extends TimeoutException {
+   private static final long serialVersionUID = 1;
+   public ConnectException (SQLException cause) {
+      super("Could not connect to the database: " + cause.getMessage());
+      initCause(cause); }}
+
 /**
 * Constructs a MiniConnectionPoolManager object with a timeout of 60 seconds.
 *
@@ -89,8 +105,23 @@ public MiniConnectionPoolManager (ConnectionPoolDataSource dataSource, int maxCo
       throw new IllegalArgumentException("Invalid maxConnections value."); }
    semaphore = new Semaphore(maxConnections,true);
    recycledConnections = new LinkedList<PooledConnection>();
+   idleSince = new HashMap<PooledConnection,Long>();
+   checkedAt = new HashMap<PooledConnection,Long>();
+   keptAlive = new HashMap<PooledConnection,Long>();
    poolConnectionEventListener = new PoolConnectionEventListener(); }
 
+/**
+* Sets how long a connection must have been idle before {@link #getValidConnection()}
+* checks it with {@link Connection#isValid(int)}. Connections that were returned to
+* the pool or tested by {@link #keepAlive(long)} more recently are handed out without
+* the extra round trip.
+*
+* @param validationIdleMs
+*    the idle time in milliseconds, 0 to validate on every borrow.
+*/
+public synchronized void setValidationIdle (long validationIdleMs) {
+   this.validationIdleMs = Math.max(0, validationIdleMs); }
+
 /**
 * Closes all unused pooled connections.
 */
@@ -99,6 +130,8 @@ public synchronized void dispose() throws SQLException {
       return; }
    isDisposed = true;
    SQLException e = null;
+   idleSince.clear();
+   checkedAt.clear();
    while (!recycledConnections.isEmpty()) {
       PooledConnection pconn = recycledConnections.remove();
       try {
@@ -123,9 +156,17 @@ public synchronized void dispose() throws SQLException {
 *    when no connection becomes available within <code>timeout</code> seconds.
 */
 public Connection getConnection() throws SQLException {
-   return getConnection2(timeoutMs); }
+   return getConnection2(timeoutMs).conn; }
+
+// A borrowed connection and how long it sat unused in the pool before.
+private static class Lease {
+   final Connection conn;
+   final long idleMs;
+   Lease (Connection conn, long idleMs) {
+      this.conn = conn;
+      this.idleMs = idleMs; }}
 
-private Connection getConnection2 (long timeoutMs) throws SQLException {
+private Lease getConnection2 (long timeoutMs) throws SQLException {
    // This routine is unsynchronized, because semaphore.tryAcquire() may block.
    synchronized (this) {
       if (isDisposed) {
@@ -137,26 +178,32 @@ private Connection getConnection2 (long timeoutMs) throws SQLException {
       throw new RuntimeException("Interrupted while waiting for a database connection.",e); }
    boolean ok = false;
    try {
-      Connection conn = getConnection3();
+      Lease lease = getConnection3();
       ok = true;
-      return conn; }
+      return lease; }
     finally {
       if (!ok) {
          semaphore.release(); }}}
 
-private synchronized Connection getConnection3() throws SQLException {
+private synchronized Lease getConnection3() throws SQLException {
    if (isDisposed) {
       throw new IllegalStateException("Connection pool has been disposed."); }  // test again with lock
    PooledConnection pconn;
+   long idleMs = 0;
    if (!recycledConnections.isEmpty()) {
-      pconn = recycledConnections.remove(); }
+      // Most recently used first, so the busy connections stay warm and the
+      // rest age out towards the head of the list.
+      pconn = recycledConnections.removeLast();
+      idleSince.remove(pconn);
+      Long checked = checkedAt.remove(pconn);
+      idleMs = checked == null ? Long.MAX_VALUE : System.currentTimeMillis() - checked; }
     else {
       pconn = dataSource.getPooledConnection();
       pconn.addConnectionEventListener(poolConnectionEventListener); }
    Connection conn = pconn.getConnection();
    activeConnections++;
    assertInnerState();
-   return conn; }
+   return new Lease(conn, idleMs); }
 
 /**
 * Retrieves a connection from the connection pool and ensures that it is valid
@@ -170,6 +217,7 @@ private synchronized Connection getConnection3() throws SQLException {
 *
 * <p>This method is slower than {@link #getConnection()} because the JDBC
 * driver has to send an extra command to the database server to test the connection.
+* Only connections idle for longer than {@link #setValidationIdle(long)} are tested.
 *
 *
 * <p>This method requires Java 1.6 or newer.
@@ -178,11 +226,20 @@ private synchronized Connection getConnection3() throws SQLException {
 *    when no valid connection becomes available within <code>timeout</code> seconds.
 */
 public Connection getValidConnection() {
+   return getValidConnection(timeoutMs, false); }
+
+/**
+* Like {@link #getValidConnection()}, but waits at most <code>timeoutMs</code>
+* milliseconds. With <code>failFast</code> a failure to open a new connection
+* throws a {@link ConnectException} at once instead of being retried until
+* the timeout, so a dead server is noticed after one connect attempt.
+*/
+public Connection getValidConnection (long timeoutMs, boolean failFast) {
    long time = System.currentTimeMillis();
    long timeoutTime = time + timeoutMs;
    int triesWithoutDelay = getInactiveConnections() + 1;
    while (true) {
-      Connection conn = getValidConnection2(time, timeoutTime);
+      Connection conn = getValidConnection2(time, timeoutTime, failFast);
       if (conn != null) {
          return conn; }
       triesWithoutDelay--;
@@ -196,13 +253,19 @@ public Connection getValidConnection() {
       if (time >= timeoutTime) {
          throw new TimeoutException("Timeout while waiting for a valid database connection."); }}}
 
-private Connection getValidConnection2 (long time, long timeoutTime) {
+private Connection getValidConnection2 (long time, long timeoutTime, boolean failFast) {
    long rtime = Math.max(1, timeoutTime - time);
-   Connection conn;
+   Lease lease;
    try {
-      conn = getConnection2(rtime); }
+      lease = getConnection2(rtime); }
     catch (SQLException e) {
+      if (failFast) {
+         throw new ConnectException(e); }
       return null; }
+   Connection conn = lease.conn;
+   synchronized (this) {
+      if (lease.idleMs < validationIdleMs) {
+         return conn; }}
    rtime = timeoutTime - System.currentTimeMillis();
    int rtimeSecs = Math.max(1, (int)((rtime+999)/1000));
    try {
@@ -239,11 +302,23 @@ private synchronized void recycleConnection (PooledConnection pconn) {
       throw new AssertionError(); }
    activeConnections--;
    semaphore.release();
-   recycledConnections.add(pconn);
+   long now = System.currentTimeMillis();
+   Long since = keptAlive.remove(pconn);
+   if (since != null) {
+      // Back from a keepalive ping: still as unused as before, but known to be good.
+      recycledConnections.addFirst(pconn);
+      idleSince.put(pconn, since); }
+    else {
+      recycledConnections.add(pconn);
+      idleSince.put(pconn, now); }
+   checkedAt.put(pconn, now);
    assertInnerState(); }
 
 private synchronized void disposeConnection (PooledConnection pconn) {
    pconn.removeConnectionEventListener(poolConnectionEventListener);
+   idleSince.remove(pconn);
+   checkedAt.remove(pconn);
+   keptAlive.remove(pconn);
    if (!recycledConnections.remove(pconn)) {
       // If the PooledConnection is not in the recycledConnections list,
       // we assume that the connection was active.
@@ -285,6 +360,114 @@ private class PoolConnectionEventListener implements ConnectionEventListener {
       PooledConnection pconn = (PooledConnection)event.getSource();
       disposeConnection(pconn); }}
 
+/**
+* Tests the connections that have not been used or tested for at least <code>idleMs</code>,
+* so that they are used before the server drops them (MySQL <code>wait_timeout</code>).
+* Invalid connections are closed. A ping does not count as use for {@link #evictIdle(int, long)}.
+*
+* <p>Meant to be called periodically from a background thread. Connections that
+* are in use are not touched.
+*
+* @param idleMs
+*    the minimum time since the last use or test in milliseconds.
+*/
+public void keepAlive (long idleMs) {
+   int n = getInactiveConnections();
+   for (int i = 0; i < n; i++) {
+      Connection conn = borrowUnchecked(System.currentTimeMillis() - idleMs);
+      if (conn == null) {
+         return; }
+      boolean valid = false;
+      try {
+         valid = conn.isValid(5); }
+       catch (SQLException e) {}
+      if (valid) {
+         try {
+            conn.close(); }
+          catch (SQLException e) {}}
+       else {
+         purgeConnection(conn); }}}
+
+// Takes an idle connection last tested before checkedBefore out of the pool.
+private synchronized Connection borrowUnchecked (long checkedBefore) {
+   if (isDisposed) {
+      return null; }
+   PooledConnection pconn = null;
+   for (PooledConnection candidate : recycledConnections) {
+      Long checked = checkedAt.get(candidate);
+      if (checked == null || checked <= checkedBefore) {
+         pconn = candidate;
+         break; }}
+   if (pconn == null || !semaphore.tryAcquire()) {
+      return null; }
+   recycledConnections.remove(pconn);
+   keptAlive.put(pconn, idleSince.remove(pconn));
+   checkedAt.remove(pconn);
+   Connection conn;
+   try {
+      conn = pconn.getConnection(); }
+    catch (SQLException e) {
+      keptAlive.remove(pconn);
+      semaphore.release();
+      pconn.removeConnectionEventListener(poolConnectionEventListener);
+      closeConnectionAndIgnoreException(pconn);
+      return null; }
+   activeConnections++;
+   assertInnerState();
+   return conn; }
+
+/**
+* Opens new connections until the pool holds at least <code>count</code> connections
+* (in use or idle), so that the first borrowers do not pay for the handshake.
+*
+* @param count
+*    the number of connections to keep open, capped at <code>maxConnections</code>.
+*/
+public void prewarm (int count) throws SQLException {
+   while (true) {
+      synchronized (this) {
+         if (isDisposed || activeConnections + recycledConnections.size() >= Math.min(count, maxConnections)) {
+            return; }}
+      PooledConnection pconn = dataSource.getPooledConnection();
+      synchronized (this) {
+         if (isDisposed || activeConnections + recycledConnections.size() >= maxConnections) {
+            closeConnectionAndIgnoreException(pconn);
+            return; }
+         pconn.addConnectionEventListener(poolConnectionEventListener);
+         long now = System.currentTimeMillis();
+         recycledConnections.addFirst(pconn);
+         idleSince.put(pconn, now);
+         checkedAt.put(pconn, now);
+         assertInnerState(); }}}
+
+/**
+* Closes idle connections that have not been used for <code>idleMs</code>, keeping
+* at least <code>minIdle</code> idle connections open.
+*
+* @param minIdle
+*    the number of idle connections to keep.
+* @param idleMs
+*    the idle time in milliseconds after which a connection may be closed.
+*/
+public void evictIdle (int minIdle, long idleMs) {
+   LinkedList<PooledConnection> evicted = new LinkedList<PooledConnection>();
+   synchronized (this) {
+      long idleBefore = System.currentTimeMillis() - idleMs;
+      Iterator<PooledConnection> it = recycledConnections.iterator();
+      while (it.hasNext() && recycledConnections.size() > minIdle) {
+         PooledConnection pconn = it.next();
+         Long since = idleSince.get(pconn);
+         if (since != null && since > idleBefore) {
+            continue; }
+         it.remove();
+         idleSince.remove(pconn);
+         checkedAt.remove(pconn);
+         pconn.removeConnectionEventListener(poolConnectionEventListener);
+         evicted.add(pconn); }
+      assertInnerState(); }
+   for (PooledConnection pconn : evicted) {
+      closeConnectionAndIgnoreException(pconn); }}
+
 /**
 * Returns the number of active (open) connections of this pool.
 *
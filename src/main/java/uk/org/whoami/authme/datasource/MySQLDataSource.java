@@ -22,26 +22,92 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.ConnectionPoolDataSource;
 
 import uk.org.whoami.authme.ConsoleLogger;
 import uk.org.whoami.authme.cache.auth.PlayerAuth;
 import uk.org.whoami.authme.datasource.MiniConnectionPoolManager.TimeoutException;
 import uk.org.whoami.authme.settings.Settings;
 
-public class MySQLDataSource implements DataSource {
+/**
+ * All state is fixed after construction and every call borrows its own
+ * connection, so queries from different threads run in parallel on the
+ * pool without further locking.
+ */
+public class MySQLDataSource implements DataSource, ChangeLog {
+
+    private static final int SCHEMA_VERSION = 4;
+    private static final int CHANGE_READ_LIMIT = 1000;
+    private static final int CHANGE_PRUNE_CHUNK = 1000;
+    private static final int ER_DUP_ENTRY = 1062;
+    private static final long SHUTDOWN_WAIT = 5000;
+    private static final int REPLICA_TIMEOUT = 2;
+    private static final long PROBE_INTERVAL = 1000;
 
-    private String host;
-    private String port;
-    private String username;
-    private String password;
-    private String database;
-    private String tableName;
-    private String columnName;
-    private String columnPassword;
-    private String columnIp;
-    private String columnLastLogin;
-    private MiniConnectionPoolManager conPool;
+    private final String host;
+    private final String port;
+    private final String username;
+    private final String password;
+    private final String database;
+    private final String tableName;
+    private final String columnName;
+    private final String columnPassword;
+    private final String columnIp;
+    private final String columnLastLogin;
+    private final String versionTable;
+    private final String changeTable;
+    private final boolean recordChanges;
+    private final String selectAuthSql;
+    private final String insertAuthSql;
+    private final String updatePasswordSql;
+    private final String updateSessionSql;
+    private final String deleteAuthSql;
+    private final String purgeSql;
+    private final String insertChangeSql;
+    private final String selectChangesSql;
+    private final String serverId = UUID.randomUUID().toString();
+    private volatile long primaryOnlyUntil;
+    private volatile int idIncrement = 1;
+    private final ThreadLocal<Boolean> rejected = new ThreadLocal<Boolean>();
+    private final int minIdle;
+    private final int queryTimeout;
+    private final long acquireWait;
+    private final CircuitBreaker breaker;
+    private final MiniConnectionPoolManager conPool;
+    private final Replica[] replicas;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final long replicaReadWindow;
+    private final long replicaRetryDelay;
+    private final ConcurrentHashMap<String, Long> recentWrites = new ConcurrentHashMap<String, Long>();
+    private final boolean uniqueNames;
+    private final long sessionBatchInterval;
+    private final int sessionBatchSize;
+    private final Map<String, PlayerAuth> pendingSessions = new HashMap<String, PlayerAuth>();
+    private Map<String, PlayerAuth> inFlightSessions = Collections.emptyMap();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService scheduler;
+    private final int purgeChunkSize;
+    private final long purgePause;
+    private volatile boolean closing;
 
     public MySQLDataSource() throws ClassNotFoundException, SQLException {
         Settings s = Settings.getInstance();
@@ -56,12 +122,141 @@ public class MySQLDataSource implements DataSource {
         this.columnPassword = s.getMySQLColumnPassword();
         this.columnIp = s.getMySQLColumnIp();
         this.columnLastLogin = s.getMySQLColumnLastLogin();
+        this.sessionBatchInterval = s.getMySQLSessionBatchInterval();
+        this.sessionBatchSize = Math.max(1, s.getMySQLSessionBatchSize());
+        this.minIdle = s.getMySQLMinIdle();
+        this.purgeChunkSize = Math.max(1, s.getMySQLPurgeChunkSize());
+        this.purgePause = s.getMySQLPurgePause();
+        this.replicaReadWindow = s.getMySQLReplicaReadWindow();
+        this.replicaRetryDelay = s.getMySQLReplicaRetryDelay();
+        this.queryTimeout = Math.max(0, s.getMySQLQueryTimeout());
+        // Nobody should wait longer for a connection than for a query
+        long acquireTimeout = s.getMySQLAcquireTimeout() * 1000L;
+        this.acquireWait = queryTimeout > 0 ? Math.min(queryTimeout * 1000L, acquireTimeout) : acquireTimeout;
+        this.breaker = new CircuitBreaker("MySQL", s.getMySQLBreakerThreshold(), s.getMySQLBreakerOpenTime());
+        this.versionTable = tableName + "_version";
+        this.changeTable = tableName + "_changes";
+
+        this.selectAuthSql = "SELECT * FROM " + tableName + " WHERE " + columnName + "=?;";
+        this.insertAuthSql = "INSERT INTO " + tableName + "(" + columnName + "," + columnPassword + "," + columnIp + "," + columnLastLogin + ") VALUES (?,?,?,?);";
+        this.updatePasswordSql = "UPDATE " + tableName + " SET " + columnPassword + "=? WHERE " + columnName + "=?;";
+        this.updateSessionSql = "UPDATE " + tableName + " SET " + columnIp + "=?, " + columnLastLogin + "=? WHERE " + columnName + "=?;";
+        this.deleteAuthSql = "DELETE FROM " + tableName + " WHERE " + columnName + "=?;";
+        // ORDER BY makes the chunk deterministic for statement-based
+        // replication. The lastlogin index ends in the primary key, so it
+        // serves this order and each chunk only touches the rows it deletes.
+        this.purgeSql = "DELETE FROM " + tableName + " WHERE " + columnLastLogin + "<? ORDER BY " + columnLastLogin
+                + ",id LIMIT " + purgeChunkSize + ";";
+        this.insertChangeSql = "INSERT INTO " + changeTable + "(name,changed,origin) VALUES (?,?,?);";
+        this.selectChangesSql = "SELECT id,name,origin FROM " + changeTable + " WHERE id>?";
+
+        this.conPool = connect(host, port, s.getMySQLAcquireTimeout());
+        conPool.prewarm(minIdle);
+        int version = setup();
+        this.uniqueNames = version >= 2 && checkUniqueNames();
+        this.recordChanges = version >= 4 && s.isCachingEnabled() && s.isCacheInvalidationEnabled();
+        this.replicas = connectReplicas(s.getMySQLReplicas());
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AuthMe-MySQL");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                probe();
+            }
+        }, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+        if (sessionBatchInterval > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    flushSessions();
+                }
+            }, sessionBatchInterval, sessionBatchInterval, TimeUnit.MILLISECONDS);
+        }
+        final long keepalive = s.getMySQLKeepaliveInterval();
+        if (keepalive > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    conPool.keepAlive(keepalive);
+                    for (Replica replica : replicas) {
+                        replica.pool.keepAlive(keepalive);
+                    }
+                }
+            }, keepalive, keepalive, TimeUnit.MILLISECONDS);
+        }
+        final long idleTimeout = s.getMySQLIdleTimeout();
+        if (idleTimeout > 0) {
+            long period = Math.max(1000, idleTimeout / 2);
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    conPool.evictIdle(minIdle, idleTimeout);
+                    try {
+                        conPool.prewarm(minIdle);
+                    } catch (SQLException ex) {
+                        ConsoleLogger.showError(ex.getMessage());
+                    }
+                    for (Replica replica : replicas) {
+                        replica.pool.evictIdle(minIdle, idleTimeout);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+        final long changeRetention = s.getMySQLChangeRetention();
+        if (recordChanges && changeRetention > 0) {
+            long period = Math.max(60000, changeRetention / 4);
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    pruneChanges(System.currentTimeMillis() - changeRetention);
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+        if (replicas.length > 0 && replicaReadWindow > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
 
-        connect();
-        setup();
+                @Override
+                public void run() {
+                    long now = System.currentTimeMillis();
+                    Iterator<Long> it = recentWrites.values().iterator();
+                    while (it.hasNext()) {
+                        if (it.next() <= now) {
+                            it.remove();
+                        }
+                    }
+                }
+            }, replicaReadWindow, replicaReadWindow, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private MiniConnectionPoolManager connect(String host, String port, int timeout) throws ClassNotFoundException, SQLException {
+        Settings s = Settings.getInstance();
+        MiniConnectionPoolManager pool = new MiniConnectionPoolManager(createDataSource(host, port),
+                Math.max(1, s.getMySQLMaxConnections()), timeout);
+        pool.setValidationIdle(s.getMySQLValidationIdle());
+        ConsoleLogger.info("Connection pool ready");
+        return pool;
     }
 
-    private synchronized void connect() throws ClassNotFoundException, SQLException {
+    /**
+     * Creates the driver's data source for one server. Runs during
+     * construction, so overrides must not rely on their own fields; the
+     * tests use this to connect to an embedded database.
+     */
+    ConnectionPoolDataSource createDataSource(String host, String port) throws ClassNotFoundException, SQLException {
         Class.forName("com.mysql.jdbc.Driver");
         ConsoleLogger.info("MySQL driver loaded");
         MysqlConnectionPoolDataSource dataSource = new MysqlConnectionPoolDataSource();
@@ -70,15 +265,49 @@ public class MySQLDataSource implements DataSource {
         dataSource.setPort(Integer.parseInt(port));
         dataSource.setUser(username);
         dataSource.setPassword(password);
+        // Statements are cached by the driver per physical connection and
+        // go away with it when the pool purges a broken connection.
+        dataSource.setCachePrepStmts(true);
+        dataSource.setUseServerPrepStmts(true);
+        dataSource.setPrepStmtCacheSize(25);
+        dataSource.setPrepStmtCacheSqlLimit(1024);
+        dataSource.setRewriteBatchedStatements(true);
+        // A server that stops answering must not hold a thread for longer
+        // than a query is allowed to take.
+        if (queryTimeout > 0) {
+            dataSource.setConnectTimeout(queryTimeout * 1000);
+            dataSource.setSocketTimeout(queryTimeout * 2000);
+        }
+        return dataSource;
+    }
 
-        conPool = new MiniConnectionPoolManager(dataSource, 10);
-        ConsoleLogger.info("Connection pool ready");
+    // Replicas only serve lookups. They get a short acquire timeout so a dead
+    // one falls back to the primary quickly; one that is down at startup is
+    // retried like one that fails later.
+    private Replica[] connectReplicas(List<String> endpoints) throws ClassNotFoundException, SQLException {
+        Replica[] connected = new Replica[endpoints.size()];
+        for (int i = 0; i < connected.length; i++) {
+            String endpoint = endpoints.get(i).trim();
+            int colon = endpoint.lastIndexOf(':');
+            String replicaHost = colon < 0 ? endpoint : endpoint.substring(0, colon);
+            String replicaPort = colon < 0 ? port : endpoint.substring(colon + 1);
+            int timeout = Math.min(REPLICA_TIMEOUT, Settings.getInstance().getMySQLAcquireTimeout());
+            connected[i] = new Replica(endpoint, connect(replicaHost, replicaPort, timeout));
+            try {
+                connected[i].pool.prewarm(minIdle);
+            } catch (SQLException ex) {
+                replicaFailed(connected[i], ex.getMessage());
+            }
+        }
+        if (connected.length > 0) {
+            ConsoleLogger.info("Routing lookups to " + connected.length + " read replica(s)");
+        }
+        return connected;
     }
 
-    private synchronized void setup() throws SQLException {
+    private int setup() throws SQLException {
         Connection con = null;
         Statement st = null;
-        ResultSet rs = null;
         try {
             con = conPool.getValidConnection();
             st = con.createStatement();
@@ -89,7 +318,80 @@ public class MySQLDataSource implements DataSource {
                     + columnIp + " VARCHAR(40) NOT NULL,"
                     + columnLastLogin + " BIGINT,"
                     + "CONSTRAINT table_const_prim PRIMARY KEY (id));");
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS " + versionTable + " ("
+                    + "version INTEGER NOT NULL);");
+
+            int version = getSchemaVersion(st);
+            if (version < 1) {
+                addMissingColumns(con, st);
+                version = setSchemaVersion(st, 1);
+            }
+            if (version < 2 && addIndexes(con, st)) {
+                version = setSchemaVersion(st, 2);
+            }
+            if (version == 2) {
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS " + changeTable + " ("
+                        + "id BIGINT AUTO_INCREMENT,"
+                        + "name VARCHAR(255) NOT NULL,"
+                        + "changed BIGINT NOT NULL,"
+                        + "CONSTRAINT " + changeTable + "_prim PRIMARY KEY (id),"
+                        + "INDEX " + changeTable + "_changed (changed));");
+                version = setSchemaVersion(st, 3);
+            }
+            // Schema version 4: the server that made a change, so it can
+            // skip its own changes
+            if (version == 3) {
+                st.executeUpdate("ALTER TABLE " + changeTable + " ADD COLUMN origin VARCHAR(36) NOT NULL DEFAULT '';");
+                version = setSchemaVersion(st, 4);
+            }
+            if (version < SCHEMA_VERSION) {
+                ConsoleLogger.showError("MySQL schema is at version " + version
+                        + " of " + SCHEMA_VERSION + ", will retry on next start");
+            }
+            idIncrement = getIdIncrement(st);
+            ConsoleLogger.info("MySQL Setup finished");
+            return version;
+        } finally {
+            close(st);
+            close(con);
+        }
+    }
+
+    // Multi-master setups hand out every n-th id only. Servers that do not
+    // know the variable are taken to count up by one.
+    private int getIdIncrement(Statement st) {
+        ResultSet rs = null;
+        try {
+            rs = st.executeQuery("SELECT @@auto_increment_increment;");
+            return rs.next() ? Math.max(1, rs.getInt(1)) : 1;
+        } catch (SQLException ex) {
+            ConsoleLogger.showError("Could not read auto_increment_increment: " + ex.getMessage());
+            return 1;
+        } finally {
+            close(rs);
+        }
+    }
 
+    private int getSchemaVersion(Statement st) throws SQLException {
+        ResultSet rs = null;
+        try {
+            rs = st.executeQuery("SELECT MAX(version) FROM " + versionTable + ";");
+            return rs.next() ? rs.getInt(1) : 0;
+        } finally {
+            close(rs);
+        }
+    }
+
+    private int setSchemaVersion(Statement st, int version) throws SQLException {
+        st.executeUpdate("DELETE FROM " + versionTable + ";");
+        st.executeUpdate("INSERT INTO " + versionTable + " VALUES (" + version + ");");
+        return version;
+    }
+
+    // Schema version 1: tables from before ip and lastlogin were tracked
+    private void addMissingColumns(Connection con, Statement st) throws SQLException {
+        ResultSet rs = null;
+        try {
             rs = con.getMetaData().getColumns(null, null, tableName, columnIp);
             if (!rs.next()) {
                 st.executeUpdate("ALTER TABLE " + tableName + " ADD COLUMN "
@@ -103,50 +405,141 @@ public class MySQLDataSource implements DataSource {
             }
         } finally {
             close(rs);
-            close(st);
-            close(con);
         }
-        ConsoleLogger.info("MySQL Setup finished");
     }
 
-    @Override
-    public synchronized boolean isAuthAvailable(String user) {
-        Connection con = null;
-        PreparedStatement pst = null;
-        ResultSet rs = null;
+    // Schema version 2: index seeks for name lookups and purges. The unique
+    // index fails on tables that already hold duplicate names; that is
+    // reported and the step is retried on the next start.
+    private boolean addIndexes(Connection con, Statement st) {
         try {
-            con = conPool.getValidConnection();
-            pst = con.prepareStatement("SELECT * FROM " + tableName + " WHERE "
-                    + columnName + "=?;");
-            pst.setString(1, user);
-            rs = pst.executeQuery();
-            return rs.next();
+            if (!isIndexed(con, columnName, true)) {
+                st.executeUpdate("CREATE UNIQUE INDEX " + tableName + "_" + columnName
+                        + " ON " + tableName + " (" + columnName + ");");
+            }
+            if (!isIndexed(con, columnLastLogin, false)) {
+                st.executeUpdate("CREATE INDEX " + tableName + "_" + columnLastLogin
+                        + " ON " + tableName + " (" + columnLastLogin + ");");
+            }
+            return true;
         } catch (SQLException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return false;
-        } catch (TimeoutException ex) {
-            ConsoleLogger.showError(ex.getMessage());
+            ConsoleLogger.showError("Could not index " + tableName + ": " + ex.getMessage());
             return false;
+        }
+    }
+
+    // A unique index only keeps names unique if the name is its only
+    // column; one that merely starts with it does not.
+    private boolean isIndexed(Connection con, String column, boolean unique) throws SQLException {
+        ResultSet rs = null;
+        try {
+            rs = con.getMetaData().getIndexInfo(null, null, tableName, unique, false);
+            Set<String> leading = new HashSet<String>();
+            Set<String> compound = new HashSet<String>();
+            while (rs.next()) {
+                String index = rs.getString("INDEX_NAME");
+                if (rs.getShort("ORDINAL_POSITION") != 1) {
+                    compound.add(index);
+                } else if (column.equalsIgnoreCase(rs.getString("COLUMN_NAME"))
+                        && (!unique || !rs.getBoolean("NON_UNIQUE"))) {
+                    leading.add(index);
+                }
+            }
+            if (unique) {
+                leading.removeAll(compound);
+            }
+            return !leading.isEmpty();
         } finally {
             close(rs);
-            close(pst);
+        }
+    }
+
+    // Tables that were marked as version 2 without a unique name index get
+    // it added now; until that works inserts check for duplicates first.
+    private boolean checkUniqueNames() throws SQLException {
+        Connection con = null;
+        Statement st = null;
+        try {
+            con = conPool.getValidConnection();
+            if (isIndexed(con, columnName, true)) {
+                return true;
+            }
+            st = con.createStatement();
+            if (addIndexes(con, st) && isIndexed(con, columnName, true)) {
+                return true;
+            }
+            ConsoleLogger.showError(tableName + "." + columnName + " has no unique index, registrations look up the name first");
+            return false;
+        } finally {
+            close(st);
             close(con);
         }
     }
 
     @Override
-    public synchronized PlayerAuth getAuth(String user) {
+    public boolean isAuthAvailable(String user) {
+        return getAuth(user) != null;
+    }
+
+    @Override
+    public PlayerAuth getAuth(String user) {
+        Replica replica = readReplica(user);
+        if (replica != null) {
+            try {
+                return queryAuth(replica.pool, user);
+            } catch (SQLException ex) {
+                replicaFailed(replica, ex.getMessage());
+            } catch (TimeoutException ex) {
+                replicaFailed(replica, ex.getMessage());
+            }
+        }
+
+        try {
+            return queryAuth(conPool, user);
+        } catch (SQLException ex) {
+            failed(ex);
+            throw new DataSourceException(ex);
+        } catch (TimeoutException ex) {
+            failed(ex);
+            throw new DataSourceException(ex);
+        }
+    }
+
+    /**
+     * Looks the account up on the primary only. Unlike getAuth, a failed
+     * lookup throws instead of looking like a missing account.
+     */
+    PlayerAuth getAuthFromPrimary(String user) throws SQLException {
+        try {
+            return queryAuth(conPool, user);
+        } catch (SQLException ex) {
+            failed(ex);
+            throw ex;
+        } catch (TimeoutException ex) {
+            failed(ex);
+            throw ex;
+        }
+    }
+
+    private PlayerAuth queryAuth(MiniConnectionPoolManager pool, String user) throws SQLException {
         Connection con = null;
         PreparedStatement pst = null;
         ResultSet rs = null;
         try {
-            con = conPool.getValidConnection();
-            pst = con.prepareStatement("SELECT * FROM " + tableName + " WHERE "
-                    + columnName + "=?;");
+            con = pool == conPool ? borrow() : pool.getValidConnection();
+            pst = prepare(con, selectAuthSql);
             pst.setString(1, user);
+            // Taken before the query, so a batch that commits in between is
+            // still overlaid instead of being missed by both
+            PlayerAuth pending = pendingSession(user);
             rs = pst.executeQuery();
+            if (pool == conPool) {
+                breaker.recordSuccess();
+            }
             if (rs.next()) {
-                if (rs.getString(columnIp).isEmpty()) {
+                if (pending != null) {
+                    return new PlayerAuth(rs.getString(columnName), rs.getString(columnPassword), pending.getIp(), pending.getLastLogin());
+                } else if (rs.getString(columnIp).isEmpty()) {
                     return new PlayerAuth(rs.getString(columnName), rs.getString(columnPassword), "198.18.0.1", rs.getLong(columnLastLogin));
                 } else {
                     return new PlayerAuth(rs.getString(columnName), rs.getString(columnPassword), rs.getString(columnIp), rs.getLong(columnLastLogin));
@@ -154,12 +547,6 @@ public class MySQLDataSource implements DataSource {
             } else {
                 return null;
             }
-        } catch (SQLException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return null;
-        } catch (TimeoutException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return null;
         } finally {
             close(rs);
             close(pst);
@@ -167,23 +554,136 @@ public class MySQLDataSource implements DataSource {
         }
     }
 
+    // Picks the next healthy replica, or null when the read has to go to
+    // the primary because the account was written moments ago.
+    private Replica readReplica(String user) {
+        if (replicas.length == 0) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (primaryOnlyUntil > now) {
+            return null;
+        }
+        Long pinned = recentWrites.get(user);
+        if (pinned != null) {
+            if (pinned > now) {
+                return null;
+            }
+            recentWrites.remove(user, pinned);
+        }
+        for (int i = 0; i < replicas.length; i++) {
+            Replica replica = replicas[(nextReplica.getAndIncrement() & Integer.MAX_VALUE) % replicas.length];
+            if (replica.downUntil <= now) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    // A failed connect is reported to the breaker at once instead of being
+    // retried until the acquire timeout, so it opens after threshold
+    // connect attempts rather than threshold full timeouts.
+    private Connection borrow() {
+        if (!breaker.allowRequest()) {
+            throw new CircuitBreaker.OpenException();
+        }
+        return conPool.getValidConnection(acquireWait, true);
+    }
+
+    private PreparedStatement prepare(Connection con, String sql) throws SQLException {
+        PreparedStatement pst = con.prepareStatement(sql);
+        pst.setQueryTimeout(queryTimeout);
+        return pst;
+    }
+
+    // Only errors that say the server is unreachable or too slow count
+    // towards opening the circuit; a bad statement does not.
+    private void failed(SQLException ex) {
+        String state = ex.getSQLState();
+        // Data and constraint errors fail the same way on every retry
+        rejected.set(state != null && (state.startsWith("22") || state.startsWith("23")));
+        if (ex instanceof SQLTimeoutException || (state != null && (state.startsWith("08") || state.equals("70100")))) {
+            breaker.recordFailure();
+        }
+        ConsoleLogger.showError(ex.getMessage());
+    }
+
+    private void failed(TimeoutException ex) {
+        rejected.set(Boolean.FALSE);
+        if (ex instanceof CircuitBreaker.OpenException) {
+            return;
+        }
+        breaker.recordFailure();
+        ConsoleLogger.showError(ex.getMessage());
+    }
+
+    private void probe() {
+        if (!breaker.tryProbe()) {
+            return;
+        }
+        Connection con = null;
+        try {
+            con = conPool.getConnection();
+            if (con.isValid(Math.max(1, queryTimeout))) {
+                breaker.recordSuccess();
+            } else {
+                breaker.recordFailure();
+            }
+        } catch (SQLException ex) {
+            breaker.recordFailure();
+        } catch (TimeoutException ex) {
+            breaker.recordFailure();
+        } finally {
+            close(con);
+        }
+    }
+
+    /**
+     * @return true if the last write on this thread failed in a way that a
+     *         retry cannot fix, e.g. a constraint violation. Clears the flag.
+     */
+    boolean wasRejected() {
+        Boolean last = rejected.get();
+        rejected.remove();
+        return last != null && last;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    private void replicaFailed(Replica replica, String message) {
+        replica.downUntil = System.currentTimeMillis() + replicaRetryDelay;
+        ConsoleLogger.showError("Read replica " + replica.endpoint + " failed, using the primary for "
+                + (replicaRetryDelay / 1000) + "s: " + message);
+    }
+
+    private void written(String user) {
+        if (replicas.length > 0) {
+            recentWrites.put(user, System.currentTimeMillis() + replicaReadWindow);
+        }
+    }
+
     @Override
-    public synchronized boolean saveAuth(PlayerAuth auth) {
+    public boolean saveAuth(PlayerAuth auth) {
+        written(auth.getNickname());
         Connection con = null;
         PreparedStatement pst = null;
         try {
-            con = conPool.getValidConnection();
-            pst = con.prepareStatement("INSERT INTO " + tableName + "(" + columnName + "," + columnPassword + "," + columnIp + "," + columnLastLogin + ") VALUES (?,?,?,?);");
+            con = borrow();
+            pst = prepare(con, insertAuthSql);
             pst.setString(1, auth.getNickname());
             pst.setString(2, auth.getHash());
             pst.setString(3, auth.getIp());
             pst.setLong(4, auth.getLastLogin());
             pst.executeUpdate();
+            breaker.recordSuccess();
+            recordChange(con, auth.getNickname());
         } catch (SQLException ex) {
-            ConsoleLogger.showError(ex.getMessage());
+            failed(ex);
             return false;
         } catch (TimeoutException ex) {
-            ConsoleLogger.showError(ex.getMessage());
+            failed(ex);
             return false;
         } finally {
             close(pst);
@@ -193,20 +693,64 @@ public class MySQLDataSource implements DataSource {
     }
 
     @Override
-    public synchronized boolean updatePassword(PlayerAuth auth) {
+    public SaveResult saveAuthIfAbsent(PlayerAuth auth) {
+        written(auth.getNickname());
+        // Without the unique index the insert cannot detect the duplicate
+        try {
+            if (!uniqueNames && getAuth(auth.getNickname()) != null) {
+                return SaveResult.DUPLICATE;
+            }
+        } catch (DataSourceException ex) {
+            return SaveResult.FAILED;
+        }
+
         Connection con = null;
         PreparedStatement pst = null;
         try {
-            con = conPool.getValidConnection();
-            pst = con.prepareStatement("UPDATE " + tableName + " SET " + columnPassword + "=? WHERE " + columnName + "=?;");
+            con = borrow();
+            pst = prepare(con, insertAuthSql);
+            pst.setString(1, auth.getNickname());
+            pst.setString(2, auth.getHash());
+            pst.setString(3, auth.getIp());
+            pst.setLong(4, auth.getLastLogin());
+            pst.executeUpdate();
+            breaker.recordSuccess();
+            recordChange(con, auth.getNickname());
+        } catch (SQLException ex) {
+            if (ex.getErrorCode() == ER_DUP_ENTRY) {
+                breaker.recordSuccess();
+                return SaveResult.DUPLICATE;
+            }
+            failed(ex);
+            return SaveResult.FAILED;
+        } catch (TimeoutException ex) {
+            failed(ex);
+            return SaveResult.FAILED;
+        } finally {
+            close(pst);
+            close(con);
+        }
+        return SaveResult.SAVED;
+    }
+
+    @Override
+    public boolean updatePassword(PlayerAuth auth) {
+        written(auth.getNickname());
+        Connection con = null;
+        PreparedStatement pst = null;
+        try {
+            con = borrow();
+            pst = prepare(con, updatePasswordSql);
             pst.setString(1, auth.getHash());
             pst.setString(2, auth.getNickname());
             pst.executeUpdate();
+            breaker.recordSuccess();
+            recordChange(con, auth.getNickname());
         } catch (SQLException ex) {
-            ConsoleLogger.showError(ex.getMessage());
+            failed(ex);
             return false;
         } catch (TimeoutException ex) {
-            ConsoleLogger.showError(ex.getMessage());
+            failed(ex);
             return false;
         } finally {
             close(pst);
@@ -215,22 +759,192 @@ public class MySQLDataSource implements DataSource {
         return true;
     }
 
+    /**
+     * Session updates are queued per account, last write wins, and sent as
+     * one JDBC batch by the background flush. Only one flush runs at a time,
+     * so two updates for the same account reach the table in order, and a
+     * batch stays visible to getAuth until it is committed.
+     */
     @Override
     public boolean updateSession(PlayerAuth auth) {
+        written(auth.getNickname());
+        int queued;
+        synchronized (pendingSessions) {
+            pendingSessions.put(auth.getNickname(), new PlayerAuth(auth.getNickname(), auth.getHash(),
+                    auth.getIp(), auth.getLastLogin()));
+            queued = pendingSessions.size();
+        }
+        if (sessionBatchInterval <= 0) {
+            return flushSessions();
+        }
+        if (queued == sessionBatchSize) {
+            scheduler.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    flushSessions();
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Writes one session update right away instead of batching it, for
+     * callers that must know whether it reached the database. Serialized
+     * with the batch flushes, so an older batched update for the same
+     * account cannot land after it.
+     */
+    boolean updateSessionNow(PlayerAuth auth) {
+        written(auth.getNickname());
+        synchronized (flushLock) {
+            synchronized (pendingSessions) {
+                pendingSessions.remove(auth.getNickname());
+            }
+            return flushSessions(Collections.singletonMap(auth.getNickname(), new PlayerAuth(auth.getNickname(),
+                    auth.getHash(), auth.getIp(), auth.getLastLogin())));
+        }
+    }
+
+    private boolean flushSessions() {
+        synchronized (flushLock) {
+            Map<String, PlayerAuth> batch;
+            synchronized (pendingSessions) {
+                if (pendingSessions.isEmpty()) {
+                    return true;
+                }
+                batch = new LinkedHashMap<String, PlayerAuth>(pendingSessions);
+                pendingSessions.clear();
+                inFlightSessions = batch;
+            }
+
+            boolean flushed = false;
+            try {
+                flushed = flushSessions(batch);
+                return flushed;
+            } finally {
+                synchronized (pendingSessions) {
+                    // Keep the failed updates for the next flush unless they were superseded
+                    if (!flushed) {
+                        for (PlayerAuth auth : batch.values()) {
+                            if (!pendingSessions.containsKey(auth.getNickname())) {
+                                pendingSessions.put(auth.getNickname(), auth);
+                            }
+                        }
+                    }
+                    inFlightSessions = Collections.emptyMap();
+                }
+            }
+        }
+    }
+
+    private boolean flushSessions(Map<String, PlayerAuth> batch) {
         Connection con = null;
         PreparedStatement pst = null;
         try {
-            con = conPool.getValidConnection();
-            pst = con.prepareStatement("UPDATE " + tableName + " SET " + columnIp + "=?, " + columnLastLogin + "=? WHERE " + columnName + "=?;");
-            pst.setString(1, auth.getIp());
-            pst.setLong(2, auth.getLastLogin());
-            pst.setString(3, auth.getNickname());
+            con = borrow();
+            pst = prepare(con, updateSessionSql);
+            for (PlayerAuth auth : batch.values()) {
+                pst.setString(1, auth.getIp());
+                pst.setLong(2, auth.getLastLogin());
+                pst.setString(3, auth.getNickname());
+                pst.addBatch();
+            }
+            pst.executeBatch();
+            breaker.recordSuccess();
+            recordChanges(con, batch.keySet());
+            return true;
+        } catch (SQLException ex) {
+            failed(ex);
+        } catch (TimeoutException ex) {
+            failed(ex);
+        } finally {
+            close(pst);
+            close(con);
+        }
+        return false;
+    }
+
+    private PlayerAuth pendingSession(String user) {
+        synchronized (pendingSessions) {
+            PlayerAuth pending = pendingSessions.get(user);
+            return pending != null ? pending : inFlightSessions.get(user);
+        }
+    }
+
+    /**
+     * Deletes in chunks of DataSource.mySQLPurgeChunkSize rows, each its own
+     * short transaction, with a pause in between so logins are not held up
+     * behind one long-running delete.
+     */
+    @Override
+    public int purgeDatabase(long until, PurgeProgress progress) {
+        // Pending logins must land first or their accounts look stale
+        flushSessions();
+        int total = 0;
+        while (!closing) {
+            int deleted;
+            Connection con = null;
+            PreparedStatement pst = null;
+            try {
+                con = borrow();
+                pst = prepare(con, purgeSql);
+                pst.setLong(1, until);
+                deleted = pst.executeUpdate();
+                breaker.recordSuccess();
+            } catch (SQLException ex) {
+                failed(ex);
+                break;
+            } catch (TimeoutException ex) {
+                failed(ex);
+                break;
+            } finally {
+                close(pst);
+                close(con);
+            }
+
+            total += deleted;
+            if (deleted < purgeChunkSize) {
+                break;
+            }
+            ConsoleLogger.info("Purge in progress, " + total + " accounts deleted so far");
+            if (progress != null) {
+                progress.purged(total);
+            }
+            try {
+                Thread.sleep(purgePause);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // Once for the whole purge, every server drops its cache on it
+        if (total > 0) {
+            recordChange(ChangeLog.ALL);
+        }
+        return total;
+    }
+
+    @Override
+    public boolean removeAuth(String user) {
+        written(user);
+        synchronized (pendingSessions) {
+            pendingSessions.remove(user);
+        }
+        Connection con = null;
+        PreparedStatement pst = null;
+        try {
+            con = borrow();
+            pst = prepare(con, deleteAuthSql);
+            pst.setString(1, user);
             pst.executeUpdate();
+            breaker.recordSuccess();
+            recordChange(con, user);
         } catch (SQLException ex) {
-            ConsoleLogger.showError(ex.getMessage());
+            failed(ex);
             return false;
         } catch (TimeoutException ex) {
-            ConsoleLogger.showError(ex.getMessage());
+            failed(ex);
             return false;
         } finally {
             close(pst);
@@ -239,56 +953,209 @@ public class MySQLDataSource implements DataSource {
         return true;
     }
 
+    // Streams the names instead of buffering the whole result in the
+    // driver, and runs without the query timeout since large tables take a
+    // while to read.
     @Override
-    public int purgeDatabase(long until) {
+    public boolean getAllNames(Collection<String> names) {
         Connection con = null;
-        PreparedStatement pst = null;
+        Statement st = null;
+        ResultSet rs = null;
         try {
-            con = conPool.getValidConnection();
-            pst = con.prepareStatement("DELETE FROM " + tableName + " WHERE " + columnLastLogin + "<?;");
-            pst.setLong(1, until);
-            return pst.executeUpdate();
+            con = borrow();
+            st = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            st.setFetchSize(Integer.MIN_VALUE);
+            rs = st.executeQuery("SELECT " + columnName + " FROM " + tableName + ";");
+            breaker.recordSuccess();
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+            return true;
         } catch (SQLException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return 0;
+            failed(ex);
+            return false;
         } catch (TimeoutException ex) {
-            ConsoleLogger.showError(ex.getMessage());
-            return 0;
+            failed(ex);
+            return false;
         } finally {
-            close(pst);
+            close(rs);
+            close(st);
+            close(con);
+        }
+    }
+
+    @Override
+    public long getLatestChange() {
+        Connection con = null;
+        Statement st = null;
+        ResultSet rs = null;
+        try {
+            con = borrow();
+            st = con.createStatement();
+            rs = st.executeQuery("SELECT MAX(id) FROM " + changeTable + ";");
+            breaker.recordSuccess();
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException ex) {
+            failed(ex);
+            return -1;
+        } catch (TimeoutException ex) {
+            failed(ex);
+            return -1;
+        } finally {
+            close(rs);
+            close(st);
             close(con);
         }
     }
 
     @Override
-    public synchronized boolean removeAuth(String user) {
+    public int getIdIncrement() {
+        return idIncrement;
+    }
+
+    // Changes made by other servers pin the account to the primary for the
+    // replica read window, so the reload after the eviction does not pick
+    // up the old row from a lagging replica.
+    @Override
+    public boolean readChanges(long after, Collection<Long> gaps, Collection<Long> ids, Collection<String> names) {
+        StringBuilder sql = new StringBuilder(selectChangesSql);
+        if (!gaps.isEmpty()) {
+            sql.append(" OR id IN (?");
+            for (int i = 1; i < gaps.size(); i++) {
+                sql.append(",?");
+            }
+            sql.append(")");
+        }
+        sql.append(" ORDER BY id LIMIT ").append(CHANGE_READ_LIMIT).append(";");
+
         Connection con = null;
         PreparedStatement pst = null;
+        ResultSet rs = null;
         try {
-            con = conPool.getValidConnection();
-            pst = con.prepareStatement("DELETE FROM " + tableName + " WHERE " + columnName + "=?;");
-            pst.setString(1, user);
-            pst.executeUpdate();
+            con = borrow();
+            pst = prepare(con, sql.toString());
+            pst.setLong(1, after);
+            int param = 2;
+            for (Long gap : gaps) {
+                pst.setLong(param++, gap);
+            }
+            rs = pst.executeQuery();
+            breaker.recordSuccess();
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+                if (serverId.equals(rs.getString(3))) {
+                    continue;
+                }
+                String name = rs.getString(2);
+                names.add(name);
+                if (ChangeLog.ALL.equals(name)) {
+                    primaryOnlyUntil = System.currentTimeMillis() + replicaReadWindow;
+                } else {
+                    written(name);
+                }
+            }
+            return true;
         } catch (SQLException ex) {
-            ConsoleLogger.showError(ex.getMessage());
+            failed(ex);
             return false;
         } catch (TimeoutException ex) {
-            ConsoleLogger.showError(ex.getMessage());
+            failed(ex);
             return false;
+        } finally {
+            close(rs);
+            close(pst);
+            close(con);
+        }
+    }
+
+    private void recordChange(String name) {
+        if (!recordChanges) {
+            return;
+        }
+        Connection con = null;
+        try {
+            con = borrow();
+            recordChange(con, name);
+        } catch (TimeoutException ex) {
+            failed(ex);
+        } finally {
+            close(con);
+        }
+    }
+
+    private void recordChange(Connection con, String name) {
+        recordChanges(con, Collections.singleton(name));
+    }
+
+    // Failing to record a change only leaves other servers with a stale
+    // cache entry, so it must not fail the write that was already made.
+    private void recordChanges(Connection con, Collection<String> names) {
+        if (!recordChanges) {
+            return;
+        }
+        PreparedStatement pst = null;
+        try {
+            pst = prepare(con, insertChangeSql);
+            long now = System.currentTimeMillis();
+            for (String name : names) {
+                pst.setString(1, name);
+                pst.setLong(2, now);
+                pst.setString(3, serverId);
+                pst.addBatch();
+            }
+            pst.executeBatch();
+            breaker.recordSuccess();
+        } catch (SQLException ex) {
+            failed(ex);
+        } finally {
+            close(pst);
+        }
+    }
+
+    private void pruneChanges(long until) {
+        Connection con = null;
+        PreparedStatement pst = null;
+        try {
+            con = borrow();
+            pst = prepare(con, "DELETE FROM " + changeTable + " WHERE changed<? ORDER BY changed,id LIMIT " + CHANGE_PRUNE_CHUNK + ";");
+            pst.setLong(1, until);
+            int deleted;
+            do {
+                deleted = pst.executeUpdate();
+                breaker.recordSuccess();
+            } while (!closing && deleted == CHANGE_PRUNE_CHUNK);
+        } catch (SQLException ex) {
+            failed(ex);
+        } catch (TimeoutException ex) {
+            failed(ex);
         } finally {
             close(pst);
             close(con);
         }
-        return true;
     }
 
     @Override
     public synchronized void close() {
+        closing = true;
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flushSessions();
         try {
             conPool.dispose();
         } catch (SQLException ex) {
             ConsoleLogger.showError(ex.getMessage());
         }
+        for (Replica replica : replicas) {
+            try {
+                replica.pool.dispose();
+            } catch (SQLException ex) {
+                ConsoleLogger.showError(ex.getMessage());
+            }
+        }
     }
 
     @Override
@@ -324,4 +1191,16 @@ public class MySQLDataSource implements DataSource {
             }
         }
     }
+
+    private static class Replica {
+
+        private final String endpoint;
+        private final MiniConnectionPoolManager pool;
+        private volatile long downUntil;
+
+        private Replica(String endpoint, MiniConnectionPoolManager pool) {
+            this.endpoint = endpoint;
+            this.pool = pool;
+        }
+    }
 }
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.datasource;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+
+import uk.org.whoami.authme.ConsoleLogger;
+import uk.org.whoami.authme.cache.auth.PlayerAuth;
+import uk.org.whoami.authme.settings.Settings;
+
+public class SQLiteDataSource implements DataSource {
+
+    private static final int SQLITE_CONSTRAINT = 19;
+    private String tableName;
+    private String columnName;
+    private String columnPassword;
+    private String columnIp;
+    private String columnLastLogin;
+    private Connection con;
+    private PreparedStatement selectAuth;
+    private PreparedStatement insertAuth;
+    private PreparedStatement updatePassword;
+    private PreparedStatement updateSession;
+    private PreparedStatement deleteAuth;
+    private PreparedStatement purge;
+
+    public SQLiteDataSource() throws ClassNotFoundException, SQLException {
+        Settings s = Settings.getInstance();
+        this.tableName = s.getMySQLTablename();
+        this.columnName = s.getMySQLColumnName();
+        this.columnPassword = s.getMySQLColumnPassword();
+        this.columnIp = s.getMySQLColumnIp();
+        this.columnLastLogin = s.getMySQLColumnLastLogin();
+
+        connect();
+        setup();
+        prepare();
+    }
+
+    private synchronized void connect() throws ClassNotFoundException, SQLException {
+        Class.forName("org.sqlite.JDBC");
+        ConsoleLogger.info("SQLite driver loaded");
+        con = DriverManager.getConnection("jdbc:sqlite:" + Settings.SQLITE_FILE);
+
+        Statement st = con.createStatement();
+        try {
+            st.execute("PRAGMA journal_mode=WAL;");
+            st.execute("PRAGMA synchronous=NORMAL;");
+        } finally {
+            close(st);
+        }
+    }
+
+    private synchronized void setup() throws SQLException {
+        Statement st = null;
+        try {
+            st = con.createStatement();
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS " + tableName + " ("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + columnName + " VARCHAR(255) NOT NULL COLLATE NOCASE,"
+                    + columnPassword + " VARCHAR(255) NOT NULL,"
+                    + columnIp + " VARCHAR(40) NOT NULL,"
+                    + columnLastLogin + " BIGINT);");
+            // Names are compared like every other backend does, so the
+            // unique index also refuses a name that differs only in case
+            st.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS " + tableName + "_" + columnName
+                    + " ON " + tableName + " (" + columnName + " COLLATE NOCASE);");
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS " + tableName + "_" + columnLastLogin
+                    + " ON " + tableName + " (" + columnLastLogin + ");");
+        } finally {
+            close(st);
+        }
+        ConsoleLogger.info("SQLite Setup finished");
+    }
+
+    private synchronized void prepare() throws SQLException {
+        selectAuth = con.prepareStatement("SELECT * FROM " + tableName + " WHERE " + columnName + "=?;");
+        insertAuth = con.prepareStatement("INSERT INTO " + tableName + "(" + columnName + "," + columnPassword + ","
+                + columnIp + "," + columnLastLogin + ") VALUES (?,?,?,?);");
+        updatePassword = con.prepareStatement("UPDATE " + tableName + " SET " + columnPassword + "=? WHERE "
+                + columnName + "=?;");
+        updateSession = con.prepareStatement("UPDATE " + tableName + " SET " + columnIp + "=?, "
+                + columnLastLogin + "=? WHERE " + columnName + "=?;");
+        deleteAuth = con.prepareStatement("DELETE FROM " + tableName + " WHERE " + columnName + "=?;");
+        purge = con.prepareStatement("DELETE FROM " + tableName + " WHERE " + columnLastLogin + "<?;");
+    }
+
+    @Override
+    public synchronized boolean isAuthAvailable(String user) {
+        ResultSet rs = null;
+        try {
+            selectAuth.setString(1, user);
+            rs = selectAuth.executeQuery();
+            return rs.next();
+        } catch (SQLException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+            throw new DataSourceException(ex);
+        } finally {
+            close(rs);
+        }
+    }
+
+    @Override
+    public synchronized PlayerAuth getAuth(String user) {
+        ResultSet rs = null;
+        try {
+            selectAuth.setString(1, user);
+            rs = selectAuth.executeQuery();
+            if (rs.next()) {
+                if (rs.getString(columnIp).isEmpty()) {
+                    return new PlayerAuth(rs.getString(columnName), rs.getString(columnPassword), "198.18.0.1", rs.getLong(columnLastLogin));
+                } else {
+                    return new PlayerAuth(rs.getString(columnName), rs.getString(columnPassword), rs.getString(columnIp), rs.getLong(columnLastLogin));
+                }
+            } else {
+                return null;
+            }
+        } catch (SQLException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+            throw new DataSourceException(ex);
+        } finally {
+            close(rs);
+        }
+    }
+
+    @Override
+    public synchronized boolean saveAuth(PlayerAuth auth) {
+        try {
+            insertAuth.setString(1, auth.getNickname());
+            insertAuth.setString(2, auth.getHash());
+            insertAuth.setString(3, auth.getIp());
+            insertAuth.setLong(4, auth.getLastLogin());
+            insertAuth.executeUpdate();
+        } catch (SQLException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized SaveResult saveAuthIfAbsent(PlayerAuth auth) {
+        try {
+            insertAuth.setString(1, auth.getNickname());
+            insertAuth.setString(2, auth.getHash());
+            insertAuth.setString(3, auth.getIp());
+            insertAuth.setLong(4, auth.getLastLogin());
+            insertAuth.executeUpdate();
+            return SaveResult.SAVED;
+        } catch (SQLException ex) {
+            if (isUniqueViolation(ex)) {
+                return SaveResult.DUPLICATE;
+            }
+            ConsoleLogger.showError(ex.getMessage());
+            return SaveResult.FAILED;
+        }
+    }
+
+    // Only the unique name index makes a registration a duplicate; other
+    // constraint errors, such as a NOT NULL column, are failures. The
+    // driver reports the primary result code and names the extended one
+    // (SQLITE_CONSTRAINT_UNIQUE) in the message.
+    private static boolean isUniqueViolation(SQLException ex) {
+        String message = ex.getMessage();
+        return ex.getErrorCode() == SQLITE_CONSTRAINT && message != null
+                && (message.contains("SQLITE_CONSTRAINT_UNIQUE") || message.contains("UNIQUE constraint failed")
+                || message.contains("not unique"));
+    }
+
+    @Override
+    public synchronized boolean updatePassword(PlayerAuth auth) {
+        try {
+            updatePassword.setString(1, auth.getHash());
+            updatePassword.setString(2, auth.getNickname());
+            updatePassword.executeUpdate();
+        } catch (SQLException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean updateSession(PlayerAuth auth) {
+        try {
+            updateSession.setString(1, auth.getIp());
+            updateSession.setLong(2, auth.getLastLogin());
+            updateSession.setString(3, auth.getNickname());
+            updateSession.executeUpdate();
+        } catch (SQLException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized int purgeDatabase(long until, PurgeProgress progress) {
+        try {
+            purge.setLong(1, until);
+            return purge.executeUpdate();
+        } catch (SQLException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized boolean removeAuth(String user) {
+        try {
+            deleteAuth.setString(1, user);
+            deleteAuth.executeUpdate();
+        } catch (SQLException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean getAllNames(Collection<String> names) {
+        Statement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.createStatement();
+            rs = st.executeQuery("SELECT " + columnName + " FROM " + tableName + ";");
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+            return true;
+        } catch (SQLException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+            return false;
+        } finally {
+            close(rs);
+            close(st);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        close(selectAuth);
+        close(insertAuth);
+        close(updatePassword);
+        close(updateSession);
+        close(deleteAuth);
+        close(purge);
+        if (con != null) {
+            try {
+                con.close();
+            } catch (SQLException ex) {
+                ConsoleLogger.showError(ex.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void reload() {
+    }
+
+    private void close(Statement st) {
+        if (st != null) {
+            try {
+                st.close();
+            } catch (SQLException ex) {
+                ConsoleLogger.showError(ex.getMessage());
+            }
+        }
+    }
+
+    private void close(ResultSet rs) {
+        if (rs != null) {
+            try {
+                rs.close();
+            } catch (SQLException ex) {
+                ConsoleLogger.showError(ex.getMessage());
+            }
+        }
+    }
+}
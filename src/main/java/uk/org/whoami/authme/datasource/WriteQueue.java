@@ -0,0 +1,264 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.datasource;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import uk.org.whoami.authme.ConsoleLogger;
+import uk.org.whoami.authme.cache.auth.PlayerAuth;
+
+/**
+ * Durable FIFO of writes that could not reach the primary database.
+ *
+ * file layout:
+ *
+ * OP:PLAYERNAME:HASHSUM:IP:LOGININMILLIESECONDS
+ *
+ * OP is one of S (save), P (password), L (session) or R (remove). Entries
+ * are appended and synced one by one; replayed entries are only dropped
+ * from the file on the next {@link #persist()}, so after a crash some of
+ * them may be replayed twice.
+ */
+final class WriteQueue {
+
+    enum Op {
+
+        SAVE('S'), PASSWORD('P'), SESSION('L'), REMOVE('R');
+
+        private final char code;
+
+        Op(char code) {
+            this.code = code;
+        }
+
+        static Op fromCode(String code) {
+            for (Op op : values()) {
+                if (code.length() == 1 && code.charAt(0) == op.code) {
+                    return op;
+                }
+            }
+            return null;
+        }
+    }
+
+    static final class Entry {
+
+        final Op op;
+        final PlayerAuth auth;
+
+        Entry(Op op, PlayerAuth auth) {
+            this.op = op;
+            this.auth = auth;
+        }
+    }
+
+    private final File file;
+    private final File tmp;
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+    private final HashMap<String, Integer> names = new HashMap<String, Integer>();
+    private boolean dirty;
+
+    WriteQueue(File file) throws IOException {
+        this.file = file;
+        this.tmp = new File(file.getPath() + ".tmp");
+        tmp.delete();
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    private void load() throws IOException {
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] args = line.split(":", -1);
+                Op op = args.length == 5 ? Op.fromCode(args[0]) : null;
+                if (op == null) {
+                    if (!line.isEmpty()) {
+                        ConsoleLogger.showError("Skipping malformed line in " + file.getName());
+                    }
+                    continue;
+                }
+                try {
+                    enqueue(new Entry(op, new PlayerAuth(args[1], args[2], args[3], Long.parseLong(args[4]))));
+                } catch (NumberFormatException ex) {
+                    ConsoleLogger.showError("Skipping malformed line for " + args[1] + " in " + file.getName());
+                }
+            }
+        } finally {
+            br.close();
+        }
+    }
+
+    private static String toLine(Entry entry) {
+        PlayerAuth auth = entry.auth;
+        return entry.op.code + ":" + auth.getNickname() + ":" + auth.getHash() + ":" + auth.getIp() + ":"
+                + auth.getLastLogin() + "\n";
+    }
+
+    private void enqueue(Entry entry) {
+        entries.add(entry);
+        String key = entry.auth.getNickname().toLowerCase();
+        Integer count = names.get(key);
+        names.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Appends an entry and syncs it to disk.
+     *
+     * @return false if the entry could not be written
+     */
+    synchronized boolean add(Op op, PlayerAuth auth) {
+        Entry entry = new Entry(op, new PlayerAuth(auth.getNickname(), auth.getHash(), auth.getIp(),
+                auth.getLastLogin()));
+        if (!write(file, toLine(entry))) {
+            return false;
+        }
+        enqueue(entry);
+        return true;
+    }
+
+    synchronized Entry peek() {
+        return entries.peek();
+    }
+
+    /**
+     * Removes the head of the queue after it was replayed.
+     */
+    synchronized void remove() {
+        Entry entry = entries.poll();
+        if (entry == null) {
+            return;
+        }
+        String key = entry.auth.getNickname().toLowerCase();
+        int count = names.get(key);
+        if (count == 1) {
+            names.remove(key);
+        } else {
+            names.put(key, count - 1);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Removes every entry for the account, wherever it is in the queue.
+     *
+     * @return the number of entries removed
+     */
+    synchronized int removeAll(String user) {
+        String key = user.toLowerCase();
+        if (names.remove(key) == null) {
+            return 0;
+        }
+        int removed = 0;
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            if (it.next().auth.getNickname().equalsIgnoreCase(key)) {
+                it.remove();
+                removed++;
+            }
+        }
+        dirty = true;
+        return removed;
+    }
+
+    /**
+     * @return true if writes for the account are still waiting, so newer
+     *         ones have to be queued behind them
+     */
+    synchronized boolean contains(String user) {
+        return names.containsKey(user.toLowerCase());
+    }
+
+    synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Rewrites the file with the entries that were not replayed yet.
+     */
+    synchronized void persist() {
+        if (!dirty) {
+            return;
+        }
+        if (entries.isEmpty()) {
+            if (file.delete() || !file.exists()) {
+                dirty = false;
+            }
+            return;
+        }
+
+        StringBuilder data = new StringBuilder();
+        for (Entry entry : entries) {
+            data.append(toLine(entry));
+        }
+        tmp.delete();
+        if (!write(tmp, data.toString())) {
+            return;
+        }
+        try {
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            dirty = false;
+        } catch (IOException ex) {
+            ConsoleLogger.showError("Could not replace " + file.getName() + ": " + ex.getMessage());
+        }
+    }
+
+    private boolean write(File target, String data) {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(target, true);
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos));
+            bw.write(data);
+            bw.flush();
+            fos.getFD().sync();
+        } catch (IOException ex) {
+            ConsoleLogger.showError(ex.getMessage());
+            return false;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -16,49 +16,23 @@
 
 package uk.org.whoami.authme.listener;
 
-import org.bukkit.entity.Player;
 import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockListener;
 import org.bukkit.event.block.BlockPlaceEvent;
 
-import uk.org.whoami.authme.cache.auth.PlayerCache;
-import uk.org.whoami.authme.citizens.CitizensCommunicator;
-import uk.org.whoami.authme.datasource.DataSource;
-import uk.org.whoami.authme.settings.Settings;
+import uk.org.whoami.authme.cache.auth.AuthStateCache;
 
 public class AuthMeBlockListener extends BlockListener {
 
-    private DataSource data;
-    private Settings settings = Settings.getInstance();
-
-    public AuthMeBlockListener(DataSource data) {
-        this.data = data;
-    }
-
     @Override
     public void onBlockPlace(BlockPlaceEvent event) {
         if (event.isCancelled() || event.getPlayer() == null) {
             return;
         }
 
-        Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
-
-        if(CitizensCommunicator.isNPC(player)) {
-            return;
-        }
-
-        if (PlayerCache.getInstance().isAuthenticated(name)) {
-            return;
-        }
-
-        if (!data.isAuthAvailable(name)) {
-            if (!settings.isForcedRegistrationEnabled()) {
-                return;
-            }
+        if (AuthStateCache.getInstance().isRestricted(event.getPlayer())) {
+            event.setCancelled(true);
         }
-
-        event.setCancelled(true);
     }
 
     @Override
@@ -67,23 +41,8 @@ public class AuthMeBlockListener extends BlockListener {
             return;
         }
 
-        Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
-
-        if(CitizensCommunicator.isNPC(player)) {
-            return;
+        if (AuthStateCache.getInstance().isRestricted(event.getPlayer())) {
+            event.setCancelled(true);
         }
-
-        if (PlayerCache.getInstance().isAuthenticated(player.getName().toLowerCase())) {
-            return;
-        }
-
-        if (!data.isAuthAvailable(name)) {
-            if (!settings.isForcedRegistrationEnabled()) {
-                return;
-            }
-        }
-
-        event.setCancelled(true);
     }
 }
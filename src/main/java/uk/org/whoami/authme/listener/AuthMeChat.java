@@ -2,7 +2,8 @@ package uk.org.whoami.authme.listener;
 
 import org.bukkit.event.player.PlayerChatEvent;
 import org.bukkit.event.player.PlayerListener;
-import uk.org.whoami.authme.cache.auth.PlayerCache;
+import uk.org.whoami.authme.cache.auth.AuthState;
+import uk.org.whoami.authme.cache.auth.AuthStateCache;
 
 public class AuthMeChat extends PlayerListener {
 
@@ -12,7 +13,7 @@ public class AuthMeChat extends PlayerListener {
             return;
         }
         //HOTFIX - Start
-        if (PlayerCache.getInstance().isAuthenticated(event.getPlayer().getName().toLowerCase())) {
+        if (AuthStateCache.getInstance().getState(event.getPlayer()) == AuthState.AUTHENTICATED) {
             return;
         }
         event.setCancelled(true);
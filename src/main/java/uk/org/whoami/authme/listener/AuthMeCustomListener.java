@@ -8,10 +8,13 @@ import org.bukkit.event.Event;
 import org.bukkit.event.Listener;
 import uk.org.whoami.authme.AuthMe;
 import uk.org.whoami.authme.ConsoleLogger;
+import uk.org.whoami.authme.cache.auth.AuthState;
+import uk.org.whoami.authme.cache.auth.AuthStateCache;
 import uk.org.whoami.authme.cache.auth.PlayerAuth;
 import uk.org.whoami.authme.cache.auth.PlayerCache;
 import uk.org.whoami.authme.cache.limbo.LimboCache;
 import uk.org.whoami.authme.cache.limbo.LimboPlayer;
+import uk.org.whoami.authme.datasource.DataSourceException;
 import uk.org.whoami.authme.event.AuthLoginEvent;
 import uk.org.whoami.authme.event.callLogin;
 import uk.org.whoami.authme.security.PasswordSecurity;
@@ -58,6 +61,15 @@ public class AuthMeCustomListener extends CustomEventListener implements Listene
 
     }
 
+    //A lookup error does not grant the bypass
+    private boolean isRegistered(String name) {
+        try {
+            return plugin.getAuthDatabase().isAuthAvailable(name);
+        } catch (DataSourceException e) {
+            return false;
+        }
+    }
+
     @Override
     public void onCustomEvent(Event event) {
 
@@ -83,7 +95,14 @@ public class AuthMeCustomListener extends CustomEventListener implements Listene
                 }
 
                 //Check if user is brand new
-                if (!plugin.getAuthDatabase().isAuthAvailable(playerName)) {
+                boolean registered;
+                try {
+                    registered = plugin.getAuthDatabase().isAuthAvailable(playerName);
+                } catch (DataSourceException ex) {
+                    //Neither register nor authenticate without an answer
+                    return;
+                }
+                if (!registered) {
 
                     //Generate random password to register user
                     if (settings.isAutoRegisterAuthenticatedEnabled()) {
@@ -100,6 +119,7 @@ public class AuthMeCustomListener extends CustomEventListener implements Listene
                                 } else {
                                     //ConsoleLogger.info("Generated a random password \"" + password + "\" for: " + playerName); - Debug
                                     ConsoleLogger.info("Generated a random password for \"" + playerName + "\" as they are authenticated with Beta Evolutions");
+                                    AuthStateCache.getInstance().setState(player, AuthState.MUST_LOGIN);
                                     player.sendMessage(m._("userAutoRegisteredWithBetaEVO"));
                                 }
                             } catch (NoSuchAlgorithmException ex) {
@@ -124,8 +144,14 @@ public class AuthMeCustomListener extends CustomEventListener implements Listene
 
 
                 //Lets authenticate the user
-                PlayerAuth auth = plugin.getAuthDatabase().getAuth(playerName);
+                PlayerAuth auth;
+                try {
+                    auth = plugin.getAuthDatabase().getAuth(playerName);
+                } catch (DataSourceException ex) {
+                    return;
+                }
                 PlayerCache.getInstance().addPlayer(auth);
+                AuthStateCache.getInstance().setState(player, AuthState.AUTHENTICATED);
                 LimboPlayer limbo = LimboCache.getInstance().getLimboPlayer(playerName);
                 //Remove from limbo if player is in Limbo
                 if (limbo != null) {
@@ -161,7 +187,7 @@ public class AuthMeCustomListener extends CustomEventListener implements Listene
 
                 if (!plugin.isRunningPoseidon()) {
                     if (settings.isKickNonAuthenticatedEnabled()) {
-                        if (settings.isAllowRegisteredNonAuthenticatedBypassEnabled() && plugin.getAuthDatabase().isAuthAvailable(playerName)) {
+                        if (settings.isAllowRegisteredNonAuthenticatedBypassEnabled() && isRegistered(playerName)) {
                         ConsoleLogger.info(player.getName() + " Has been allowed to join as they are registered, and the registered bypass for BetaEVO is activated.");
                         } else {
                             //Kick non authenticated users
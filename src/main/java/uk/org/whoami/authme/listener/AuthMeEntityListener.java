@@ -22,20 +22,10 @@ import org.bukkit.event.entity.EntityDamageEvent;
 import org.bukkit.event.entity.EntityListener;
 import org.bukkit.event.entity.EntityTargetEvent;
 
-import uk.org.whoami.authme.cache.auth.PlayerCache;
-import uk.org.whoami.authme.citizens.CitizensCommunicator;
-import uk.org.whoami.authme.datasource.DataSource;
-import uk.org.whoami.authme.settings.Settings;
+import uk.org.whoami.authme.cache.auth.AuthStateCache;
 
 public class AuthMeEntityListener extends EntityListener {
 
-    private DataSource data;
-    private Settings settings = Settings.getInstance();
-
-    public AuthMeEntityListener(DataSource data) {
-        this.data = data;
-    }
-
     @Override
     public void onEntityDamage(EntityDamageEvent event) {
         if (event.isCancelled()) {
@@ -46,24 +36,9 @@ public class AuthMeEntityListener extends EntityListener {
             return;
         }
 
-        if(CitizensCommunicator.isNPC(entity)) {
-            return;
-        }
-
-        Player player = (Player) entity;
-        String name = player.getName().toLowerCase();
-
-        if (PlayerCache.getInstance().isAuthenticated(name)) {
-            return;
-        }
-
-        if (!data.isAuthAvailable(name)) {
-            if (!settings.isForcedRegistrationEnabled()) {
-                return;
-            }
+        if (AuthStateCache.getInstance().isRestricted((Player) entity)) {
+            event.setCancelled(true);
         }
-
-        event.setCancelled(true);
     }
 
     @Override
@@ -77,20 +52,9 @@ public class AuthMeEntityListener extends EntityListener {
             return;
         }
 
-        Player player = (Player) entity;
-        String name = player.getName().toLowerCase();
-
-        if (PlayerCache.getInstance().isAuthenticated(name)) {
-            return;
-        }
-
-        if (!data.isAuthAvailable(name)) {
-            if (!settings.isForcedRegistrationEnabled()) {
-                return;
-            }
+        if (AuthStateCache.getInstance().isRestricted((Player) entity)) {
+            event.setCancelled(true);
         }
-
-        event.setCancelled(true);
     }
 
 }
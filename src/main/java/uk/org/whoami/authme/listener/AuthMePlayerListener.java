@@ -20,6 +20,7 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.function.BiConsumer;
 
 import com.johnymuffin.beta.evolutioncore.EvolutionAPI;
 import org.bukkit.Bukkit;
@@ -45,12 +46,16 @@ import org.bukkit.scheduler.BukkitScheduler;
 
 import uk.org.whoami.authme.AuthMe;
 import uk.org.whoami.authme.ConsoleLogger;
+import uk.org.whoami.authme.cache.auth.AuthState;
+import uk.org.whoami.authme.cache.auth.AuthStateCache;
 import uk.org.whoami.authme.cache.auth.PlayerAuth;
 import uk.org.whoami.authme.cache.auth.PlayerCache;
 import uk.org.whoami.authme.cache.limbo.LimboPlayer;
 import uk.org.whoami.authme.cache.limbo.LimboCache;
 import uk.org.whoami.authme.citizens.CitizensCommunicator;
+import uk.org.whoami.authme.datasource.AsyncDataSource;
 import uk.org.whoami.authme.datasource.DataSource;
+import uk.org.whoami.authme.datasource.DataSourceException;
 import uk.org.whoami.authme.event.AuthLoginEvent;
 import uk.org.whoami.authme.event.callLogin;
 import uk.org.whoami.authme.settings.Messages;
@@ -62,14 +67,18 @@ import static uk.org.whoami.authme.event.callLogin.callLogin;
 
 public class AuthMePlayerListener extends PlayerListener {
 
+    private static final long CORRECTION_INTERVAL = 250;
+
     private Settings settings = Settings.getInstance();
     private Messages m = Messages.getInstance();
     private AuthMe plugin;
     private DataSource data;
+    private AsyncDataSource asyncData;
 
-    public AuthMePlayerListener(AuthMe plugin, DataSource data) {
+    public AuthMePlayerListener(AuthMe plugin, DataSource data, AsyncDataSource asyncData) {
         this.plugin = plugin;
         this.data = data;
+        this.asyncData = asyncData;
     }
 
     @Override
@@ -78,23 +87,10 @@ public class AuthMePlayerListener extends PlayerListener {
             return;
         }
 
-        Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
-
-        if (CitizensCommunicator.isNPC(player)) {
-            return;
-        }
-
-        if (PlayerCache.getInstance().isAuthenticated(name)) {
+        if (!AuthStateCache.getInstance().isRestricted(event.getPlayer())) {
             return;
         }
 
-        if (!data.isAuthAvailable(name)) {
-            if (!settings.isForcedRegistrationEnabled()) {
-                return;
-            }
-        }
-
         String msg = event.getMessage();
         //WorldEdit GUI Shit
         if (msg.equalsIgnoreCase("/worldedit cui")) {
@@ -117,10 +113,10 @@ public class AuthMePlayerListener extends PlayerListener {
         }
 
         Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
+        AuthState state = AuthStateCache.getInstance().getState(player);
 
         //HOTFIX - Start
-        if (PlayerCache.getInstance().isAuthenticated(name)) {
+        if (state == AuthState.AUTHENTICATED) {
             return;
         }
 
@@ -129,28 +125,19 @@ public class AuthMePlayerListener extends PlayerListener {
         player.sendMessage(m._("login_msg"));
         //HOTFIX - End
 
-        if (CitizensCommunicator.isNPC(player)) {
-            return;
-        }
-
-        if (PlayerCache.getInstance().isAuthenticated(name)) {
-            return;
-        }
-
-        if (data.isAuthAvailable(name)) {
+        if (state == AuthState.MUST_LOGIN) {
             player.sendMessage(m._("login_msg"));
-        } else {
-            if (!settings.isForcedRegistrationEnabled()) {
-                return;
-            }
-            if (settings.isChatAllowed()) {
-                return;
-            }
+        } else if (state == AuthState.MUST_REGISTER && !settings.isChatAllowed()) {
             player.sendMessage(m._("reg_msg"));
         }
-        event.setCancelled(true);
     }
 
+    // Runs for every movement packet, so it only reads the auth state and
+    // the limbo record of the player. Moves that only turn the head are
+    // ignored; every other move a restricted player may not make is
+    // refused. The first refusal teleports the player back to the anchor,
+    // further ones within CORRECTION_INTERVAL ms only cancel the move, which
+    // keeps the player where the server has them without another teleport.
     @Override
     public void onPlayerMove(PlayerMoveEvent event) {
         if (event.isCancelled() || event.getPlayer() == null) {
@@ -158,43 +145,60 @@ public class AuthMePlayerListener extends PlayerListener {
         }
 
         Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
-
-        if (CitizensCommunicator.isNPC(player)) {
+        AuthState state = AuthStateCache.getInstance().getState(player);
+        if (state == null || !state.isRestricted()) {
             return;
         }
 
-        if (PlayerCache.getInstance().isAuthenticated(name)) {
+        Location from = event.getFrom();
+        Location to = event.getTo();
+        if (from.getX() == to.getX() && from.getY() == to.getY() && from.getZ() == to.getZ()) {
             return;
         }
 
-        if (data.isAuthAvailable(name)) {
-            event.setTo(event.getFrom());
+        LimboPlayer limbo = LimboCache.getInstance().getLimboPlayer(player);
+        if (limbo == null) {
+            if (state == AuthState.MUST_LOGIN || !mayMoveTo(to)) {
+                event.setTo(from);
+            }
             return;
         }
 
-        if (!settings.isForcedRegistrationEnabled()) {
+        if (state == AuthState.MUST_REGISTER && limbo.mayMoveTo(to)) {
+            limbo.setAnchor(null);
             return;
         }
 
-        if (!settings.isMovementAllowed()) {
-            event.setTo(event.getFrom());
-            return;
+        Location anchor = limbo.getAnchor();
+        if (anchor == null || anchor.getWorld() != to.getWorld()) {
+            anchor = copy(from);
+            limbo.setAnchor(anchor);
         }
-
-        if (settings.getMovementRadius() == 0) {
-            return;
+        if (limbo.tryCorrect(System.currentTimeMillis(), CORRECTION_INTERVAL)) {
+            event.setTo(copy(anchor));
+        } else {
+            event.setCancelled(true);
         }
+    }
 
+    // The slow path for an unregistered player without a limbo record,
+    // which only happens while the player is joining
+    private boolean mayMoveTo(Location to) {
+        if (!settings.isMovementAllowed()) {
+            return false;
+        }
         int radius = settings.getMovementRadius();
-        Location spawn = player.getWorld().getSpawnLocation();
-        Location to = event.getTo();
-
-        if (to.getX() > spawn.getX() + radius || to.getX() < spawn.getX() - radius ||
-                to.getY() > spawn.getY() + radius || to.getY() < spawn.getY() - radius ||
-                to.getZ() > spawn.getZ() + radius || to.getZ() < spawn.getZ() - radius) {
-            event.setTo(event.getFrom());
+        if (radius == 0) {
+            return true;
         }
+        Location spawn = to.getWorld().getSpawnLocation();
+        return to.getX() <= spawn.getX() + radius && to.getX() >= spawn.getX() - radius
+                && to.getY() <= spawn.getY() + radius && to.getY() >= spawn.getY() - radius
+                && to.getZ() <= spawn.getZ() + radius && to.getZ() >= spawn.getZ() - radius;
+    }
+
+    private static Location copy(Location loc) {
+        return new Location(loc.getWorld(), loc.getX(), loc.getY(), loc.getZ(), loc.getYaw(), loc.getPitch());
     }
 
     @Override
@@ -222,7 +226,7 @@ public class AuthMePlayerListener extends PlayerListener {
             }
             if (settings.isKickNonAuthenticatedEnabled() && !EvolutionAPI.isUserAuthenticatedInCache(event.getPlayer().getName(), event.getAddress().getHostAddress())) {
                 //PLayers without BetaEVO should be kicked
-                if (settings.isAllowRegisteredNonAuthenticatedBypassEnabled() && plugin.getAuthDatabase().isAuthAvailable(name)) {
+                if (settings.isAllowRegisteredNonAuthenticatedBypassEnabled() && isRegistered(name)) {
                     ConsoleLogger.info(player.getName() + " Has been allowed to join as they are registered, and the registered bypass for BetaEVO is activated.");
                 } else {
                     event.setKickMessage(Messages.getInstance()._("unauthenticatedKick"));
@@ -262,34 +266,85 @@ public class AuthMePlayerListener extends PlayerListener {
         }
 
         if (settings.isKickNonRegisteredEnabled()) {
-            if (!data.isAuthAvailable(name)) {
-                event.disallow(Result.KICK_OTHER, m._("reg_only"));
+            try {
+                if (!data.isAuthAvailable(name)) {
+                    event.disallow(Result.KICK_OTHER, m._("reg_only"));
+                    return;
+                }
+            } catch (DataSourceException ex) {
+                event.disallow(Result.KICK_OTHER, m._("error"));
                 return;
             }
         }
     }
 
+    // A lookup error does not grant the bypass
+    private boolean isRegistered(String name) {
+        try {
+            return plugin.getAuthDatabase().isAuthAvailable(name);
+        } catch (DataSourceException ex) {
+            return false;
+        }
+    }
+
     @Override
     public void onPlayerJoin(PlayerJoinEvent event) {
         if (event.getPlayer() == null) {
             return;
         }
 
-        Player player = event.getPlayer();
+        final Player player = event.getPlayer();
         String name = player.getName().toLowerCase();
-        String ip = player.getAddress().getAddress().getHostAddress();
 
         if (CitizensCommunicator.isNPC(player)) {
             return;
         }
 
         if (PlayerCache.getInstance().isAuthenticated(name)) {
+            AuthStateCache.getInstance().setState(player, AuthState.AUTHENTICATED);
             return;
         }
 
-        if (data.isAuthAvailable(name)) {
+        // Hold the player in limbo until the account lookup is back
+        AuthStateCache.getInstance().setState(player, AuthState.MUST_LOGIN);
+        LimboCache.getInstance().addLimboPlayer(player);
+        final LimboPlayer limbo = LimboCache.getInstance().getLimboPlayer(name);
+        player.getInventory().setArmorContents(new ItemStack[0]);
+        player.getInventory().setContents(new ItemStack[36]);
+
+        asyncData.getAuth(name).whenComplete(new BiConsumer<PlayerAuth, Throwable>() {
+
+            @Override
+            public void accept(PlayerAuth auth, Throwable failure) {
+                if (failure != null) {
+                    joinFailed(player, limbo);
+                    return;
+                }
+                joined(player, limbo, auth);
+            }
+        });
+    }
+
+    // Without the lookup we cannot tell whether the player has to log in,
+    // so they are kicked; onPlayerKick gives back what limbo took.
+    private void joinFailed(Player player, LimboPlayer limbo) {
+        if (LimboCache.getInstance().getLimboPlayer(limbo.getName()) != limbo || !player.isOnline()) {
+            return;
+        }
+        player.kickPlayer(m._("error"));
+    }
+
+    private void joined(Player player, LimboPlayer limbo, PlayerAuth auth) {
+        String name = limbo.getName();
+
+        // The player left (and maybe rejoined) while the lookup was running
+        if (LimboCache.getInstance().getLimboPlayer(name) != limbo || !player.isOnline()) {
+            return;
+        }
+
+        if (auth != null) {
             if (settings.isSessionsEnabled()) {
-                PlayerAuth auth = data.getAuth(name);
+                String ip = player.getAddress().getAddress().getHostAddress();
                 long timeout = settings.getSessionTimeout() * 60000;
                 long lastLogin = auth.getLastLogin();
                 long cur = new Date().getTime();
@@ -301,7 +356,9 @@ public class AuthMePlayerListener extends PlayerListener {
                     //Login Event End
 
                     if (!loginEvent.isCancelled()) {
+                        releaseLimbo(player, limbo);
                         PlayerCache.getInstance().addPlayer(auth);
+                        AuthStateCache.getInstance().setState(player, AuthState.AUTHENTICATED);
                         player.sendMessage(m._("valid_session"));
                         callLogin(player, callLogin.Reason.AuthmeSession); // Run Event
                         return;
@@ -310,29 +367,34 @@ public class AuthMePlayerListener extends PlayerListener {
                 }
             }
         } else {
+            AuthStateCache.getInstance().setState(player, AuthState.unregistered());
             if (!settings.isForcedRegistrationEnabled()) {
+                releaseLimbo(player, limbo);
                 return;
             }
         }
 
-        LimboCache.getInstance().addLimboPlayer(player);
-        player.getInventory().setArmorContents(new ItemStack[0]);
-        player.getInventory().setContents(new ItemStack[36]);
         if (settings.isTeleportToSpawnEnabled()) {
             player.teleport(player.getWorld().getSpawnLocation());
         }
 
-        String msg = data.isAuthAvailable(name) ? m._("login_msg") : m._("reg_msg");
+        String msg = auth != null ? m._("login_msg") : m._("reg_msg");
         int time = settings.getRegistrationTimeout() * 20;
         int msgInterval = settings.getWarnMessageInterval();
         BukkitScheduler sched = plugin.getServer().getScheduler();
         if (time != 0) {
             int id = sched.scheduleSyncDelayedTask(plugin, new TimeoutTask(plugin, name), time);
-            LimboCache.getInstance().getLimboPlayer(name).setTimeoutTaskId(id);
+            limbo.setTimeoutTaskId(id);
         }
         sched.scheduleSyncDelayedTask(plugin, new MessageTask(plugin, name, msg, msgInterval), 15); //Wait 0.75 seconds before starting AuthMe Login Message Task
     }
 
+    private void releaseLimbo(Player player, LimboPlayer limbo) {
+        player.getInventory().setArmorContents(limbo.getArmour());
+        player.getInventory().setContents(limbo.getInventory());
+        LimboCache.getInstance().deleteLimboPlayer(limbo.getName());
+    }
+
     @Override
     public void onPlayerQuit(PlayerQuitEvent event) {
         if (event.getPlayer() == null) {
@@ -355,6 +417,7 @@ public class AuthMePlayerListener extends PlayerListener {
             LimboCache.getInstance().deleteLimboPlayer(name);
         }
         PlayerCache.getInstance().removePlayer(name);
+        AuthStateCache.getInstance().removePlayer(player);
     }
 
     @Override
@@ -379,6 +442,7 @@ public class AuthMePlayerListener extends PlayerListener {
             LimboCache.getInstance().deleteLimboPlayer(name);
         }
         PlayerCache.getInstance().removePlayer(name);
+        AuthStateCache.getInstance().removePlayer(player);
     }
 
     @Override
@@ -387,24 +451,9 @@ public class AuthMePlayerListener extends PlayerListener {
             return;
         }
 
-        Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
-
-        if (CitizensCommunicator.isNPC(player)) {
-            return;
+        if (AuthStateCache.getInstance().isRestricted(event.getPlayer())) {
+            event.setCancelled(true);
         }
-
-        if (PlayerCache.getInstance().isAuthenticated(player.getName().toLowerCase())) {
-            return;
-        }
-
-        if (!data.isAuthAvailable(name)) {
-            if (!settings.isForcedRegistrationEnabled()) {
-                return;
-            }
-        }
-
-        event.setCancelled(true);
     }
 
     @Override
@@ -413,24 +462,9 @@ public class AuthMePlayerListener extends PlayerListener {
             return;
         }
 
-        Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
-
-        if (CitizensCommunicator.isNPC(player)) {
-            return;
-        }
-
-        if (PlayerCache.getInstance().isAuthenticated(player.getName().toLowerCase())) {
-            return;
+        if (AuthStateCache.getInstance().isRestricted(event.getPlayer())) {
+            event.setCancelled(true);
         }
-
-        if (!data.isAuthAvailable(name)) {
-            if (!settings.isForcedRegistrationEnabled()) {
-                return;
-            }
-        }
-
-        event.setCancelled(true);
     }
 
     @Override
@@ -439,23 +473,9 @@ public class AuthMePlayerListener extends PlayerListener {
             return;
         }
 
-        Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
-
-        if (CitizensCommunicator.isNPC(player)) {
-            return;
+        if (AuthStateCache.getInstance().isRestricted(event.getPlayer())) {
+            event.setCancelled(true);
         }
-
-        if (PlayerCache.getInstance().isAuthenticated(player.getName().toLowerCase())) {
-            return;
-        }
-
-        if (!data.isAuthAvailable(name)) {
-            if (!settings.isForcedRegistrationEnabled()) {
-                return;
-            }
-        }
-        event.setCancelled(true);
     }
 
     @Override
@@ -463,23 +483,9 @@ public class AuthMePlayerListener extends PlayerListener {
         if (event.isCancelled() || event.getPlayer() == null) {
             return;
         }
-        Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
-
-        if (CitizensCommunicator.isNPC(player)) {
-            return;
+        if (AuthStateCache.getInstance().isRestricted(event.getPlayer())) {
+            event.setCancelled(true);
         }
-
-        if (PlayerCache.getInstance().isAuthenticated(player.getName().toLowerCase())) {
-            return;
-        }
-
-        if (!data.isAuthAvailable(name)) {
-            if (!settings.isForcedRegistrationEnabled()) {
-                return;
-            }
-        }
-        event.setCancelled(true);
     }
 
     @Override
@@ -487,22 +493,8 @@ public class AuthMePlayerListener extends PlayerListener {
         if (event.isCancelled() || event.getPlayer() == null) {
             return;
         }
-        Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
-
-        if (CitizensCommunicator.isNPC(player)) {
-            return;
-        }
-
-        if (PlayerCache.getInstance().isAuthenticated(player.getName().toLowerCase())) {
-            return;
+        if (AuthStateCache.getInstance().isRestricted(event.getPlayer())) {
+            event.setCancelled(true);
         }
-
-        if (!data.isAuthAvailable(name)) {
-            if (!settings.isForcedRegistrationEnabled()) {
-                return;
-            }
-        }
-        event.setCancelled(true);
     }
 }
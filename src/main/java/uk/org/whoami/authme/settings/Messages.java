@@ -59,6 +59,7 @@ public class Messages extends Configuration {
         map.put("reload", "Configuration and database has been reloaded");
         map.put("error", "An error ocurred; Please contact the admin");
         map.put("unknown_user", "User is not in database");
+        map.put("reg_conflict", "This name was already registered elsewhere while the database was down, please rejoin");
         map.put("userAuthenticated", "&6You have been Authenticated &6with Beta Evolution");
         map.put("userAutoRegisteredWithBetaEVO", "&6You have been automatically registered and your account locked to &bBeta Evolutions");
         map.put("unauthenticatedKick", "Sorry, this server requires Beta Evolutions: bit.ly/BetaEVO");
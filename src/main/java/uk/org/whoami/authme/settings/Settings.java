@@ -24,12 +24,18 @@ import uk.org.whoami.authme.security.PasswordSecurity;
 import uk.org.whoami.authme.security.PasswordSecurity.HashAlgorithm;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 public final class Settings extends Configuration {
 
     public static final String PLUGIN_FOLDER = "./plugins/AuthMe";
     public static final String CACHE_FOLDER = Settings.PLUGIN_FOLDER + "/cache";
     public static final String AUTH_FILE = Settings.PLUGIN_FOLDER + "/auths.db";
+    public static final String BINARY_AUTH_FILE = Settings.PLUGIN_FOLDER + "/auths.bin";
+    public static final String SQLITE_FILE = Settings.PLUGIN_FOLDER + "/auths.sqlite";
+    public static final String MYSQL_REPLICA_FILE = Settings.PLUGIN_FOLDER + "/mysql-replica.db";
+    public static final String MYSQL_QUEUE_FILE = Settings.PLUGIN_FOLDER + "/mysql-queue.db";
     public static final String MESSAGE_FILE = Settings.PLUGIN_FOLDER + "/messages.yml";
     public static final String SETTINGS_FILE = Settings.PLUGIN_FOLDER + "/config.yml";
     private static Settings singleton;
@@ -62,6 +68,17 @@ public final class Settings extends Configuration {
         getPasswordHash();
         getDataSource();
         isCachingEnabled();
+        getCacheSize();
+        getCacheTTL();
+        getCacheNegativeTTL();
+        isCacheBloomFilterEnabled();
+        isCacheInvalidationEnabled();
+        getCacheInvalidationInterval();
+        getFileCompactionRatio();
+        getFileFlushInterval();
+        isFileFsyncEnabled();
+        getIOThreads();
+        getIOQueueSize();
         getMySQLHost();
         getMySQLPort();
         getMySQLUsername();
@@ -72,6 +89,24 @@ public final class Settings extends Configuration {
         getMySQLColumnPassword();
         getMySQLColumnIp();
         getMySQLColumnLastLogin();
+        getMySQLSessionBatchInterval();
+        getMySQLSessionBatchSize();
+        getMySQLMinIdle();
+        getMySQLMaxConnections();
+        getMySQLAcquireTimeout();
+        getMySQLIdleTimeout();
+        getMySQLValidationIdle();
+        getMySQLChangeRetention();
+        getMySQLPurgeChunkSize();
+        getMySQLPurgePause();
+        getMySQLReplicas();
+        getMySQLReplicaReadWindow();
+        getMySQLReplicaRetryDelay();
+        getMySQLKeepaliveInterval();
+        getMySQLQueryTimeout();
+        getMySQLBreakerThreshold();
+        getMySQLBreakerOpenTime();
+        isMySQLLocalReplicaEnabled();
         isBetaEvolutionsSupportModeEnabled();
         isAuthenticatedSkipLoginEnabled();
         isAutoRegisterAuthenticatedEnabled();
@@ -228,6 +263,54 @@ public final class Settings extends Configuration {
         return getBoolean(key, true);
     }
 
+    public int getCacheSize() {
+        String key = "DataSource.cacheSize";
+        if (getString(key) == null) {
+            setProperty(key, 10000);
+        }
+        return getInt(key, 10000);
+    }
+
+    public int getCacheTTL() {
+        String key = "DataSource.cacheTTL";
+        if (getString(key) == null) {
+            setProperty(key, 0);
+        }
+        return getInt(key, 0);
+    }
+
+    public int getCacheNegativeTTL() {
+        String key = "DataSource.cacheNegativeTTL";
+        if (getString(key) == null) {
+            setProperty(key, 5000);
+        }
+        return getInt(key, 5000);
+    }
+
+    public boolean isCacheBloomFilterEnabled() {
+        String key = "DataSource.cacheBloomFilter";
+        if (getString(key) == null) {
+            setProperty(key, false);
+        }
+        return getBoolean(key, false);
+    }
+
+    public boolean isCacheInvalidationEnabled() {
+        String key = "DataSource.cacheInvalidation";
+        if (getString(key) == null) {
+            setProperty(key, false);
+        }
+        return getBoolean(key, false);
+    }
+
+    public int getCacheInvalidationInterval() {
+        String key = "DataSource.cacheInvalidationInterval";
+        if (getString(key) == null) {
+            setProperty(key, 2000);
+        }
+        return getInt(key, 2000);
+    }
+
     public DataSourceType getDataSource() {
         String key = "DataSource.backend";
         if (getString(key) == null) {
@@ -242,6 +325,46 @@ public final class Settings extends Configuration {
         }
     }
 
+    public double getFileCompactionRatio() {
+        String key = "DataSource.fileCompactionRatio";
+        if (getString(key) == null) {
+            setProperty(key, 0.5);
+        }
+        return getDouble(key, 0.5);
+    }
+
+    public int getFileFlushInterval() {
+        String key = "DataSource.fileFlushInterval";
+        if (getString(key) == null) {
+            setProperty(key, 1000);
+        }
+        return getInt(key, 1000);
+    }
+
+    public boolean isFileFsyncEnabled() {
+        String key = "DataSource.fileFsync";
+        if (getString(key) == null) {
+            setProperty(key, false);
+        }
+        return getBoolean(key, false);
+    }
+
+    public int getIOThreads() {
+        String key = "DataSource.ioThreads";
+        if (getString(key) == null) {
+            setProperty(key, 2);
+        }
+        return getInt(key, 2);
+    }
+
+    public int getIOQueueSize() {
+        String key = "DataSource.ioQueueSize";
+        if (getString(key) == null) {
+            setProperty(key, 1000);
+        }
+        return getInt(key, 1000);
+    }
+
     public String getMySQLHost() {
         String key = "DataSource.mySQLHost";
         if (getString(key) == null) {
@@ -322,6 +445,150 @@ public final class Settings extends Configuration {
         return getString(key);
     }
 
+    public int getMySQLSessionBatchInterval() {
+        String key = "DataSource.mySQLSessionBatchInterval";
+        if (getString(key) == null) {
+            setProperty(key, 250);
+        }
+        return getInt(key, 250);
+    }
+
+    public int getMySQLSessionBatchSize() {
+        String key = "DataSource.mySQLSessionBatchSize";
+        if (getString(key) == null) {
+            setProperty(key, 100);
+        }
+        return getInt(key, 100);
+    }
+
+    public int getMySQLMinIdle() {
+        String key = "DataSource.mySQLMinIdle";
+        if (getString(key) == null) {
+            setProperty(key, 2);
+        }
+        return getInt(key, 2);
+    }
+
+    public int getMySQLMaxConnections() {
+        String key = "DataSource.mySQLMaxConnections";
+        if (getString(key) == null) {
+            setProperty(key, 10);
+        }
+        return getInt(key, 10);
+    }
+
+    public int getMySQLAcquireTimeout() {
+        String key = "DataSource.mySQLAcquireTimeout";
+        if (getString(key) == null) {
+            setProperty(key, 60);
+        }
+        return getInt(key, 60);
+    }
+
+    public int getMySQLIdleTimeout() {
+        String key = "DataSource.mySQLIdleTimeout";
+        if (getString(key) == null) {
+            setProperty(key, 600000);
+        }
+        return getInt(key, 600000);
+    }
+
+    public int getMySQLValidationIdle() {
+        String key = "DataSource.mySQLValidationIdle";
+        if (getString(key) == null) {
+            setProperty(key, 5000);
+        }
+        return getInt(key, 5000);
+    }
+
+    public int getMySQLChangeRetention() {
+        String key = "DataSource.mySQLChangeRetention";
+        if (getString(key) == null) {
+            setProperty(key, 3600000);
+        }
+        return getInt(key, 3600000);
+    }
+
+    public int getMySQLPurgeChunkSize() {
+        String key = "DataSource.mySQLPurgeChunkSize";
+        if (getString(key) == null) {
+            setProperty(key, 1000);
+        }
+        return getInt(key, 1000);
+    }
+
+    public int getMySQLPurgePause() {
+        String key = "DataSource.mySQLPurgePause";
+        if (getString(key) == null) {
+            setProperty(key, 50);
+        }
+        return getInt(key, 50);
+    }
+
+    public List<String> getMySQLReplicas() {
+        String key = "DataSource.mySQLReplicas";
+        if (getString(key) == null) {
+            setProperty(key, new ArrayList<String>());
+        }
+        return getStringList(key, new ArrayList<String>());
+    }
+
+    public int getMySQLReplicaReadWindow() {
+        String key = "DataSource.mySQLReplicaReadWindow";
+        if (getString(key) == null) {
+            setProperty(key, 5000);
+        }
+        return getInt(key, 5000);
+    }
+
+    public int getMySQLReplicaRetryDelay() {
+        String key = "DataSource.mySQLReplicaRetryDelay";
+        if (getString(key) == null) {
+            setProperty(key, 30000);
+        }
+        return getInt(key, 30000);
+    }
+
+    public int getMySQLKeepaliveInterval() {
+        String key = "DataSource.mySQLKeepaliveInterval";
+        if (getString(key) == null) {
+            setProperty(key, 60000);
+        }
+        return getInt(key, 60000);
+    }
+
+    public int getMySQLQueryTimeout() {
+        String key = "DataSource.mySQLQueryTimeout";
+        if (getString(key) == null) {
+            setProperty(key, 5);
+        }
+        return getInt(key, 5);
+    }
+
+    public int getMySQLBreakerThreshold() {
+        String key = "DataSource.mySQLBreakerThreshold";
+        if (getString(key) == null) {
+            setProperty(key, 3);
+        }
+        return getInt(key, 3);
+    }
+
+    public int getMySQLBreakerOpenTime() {
+        String key = "DataSource.mySQLBreakerOpenTime";
+        if (getString(key) == null) {
+            setProperty(key, 10000);
+        }
+        return getInt(key, 10000);
+    }
+
+    public boolean isMySQLLocalReplicaEnabled() {
+        String key = "DataSource.mySQLLocalReplica";
+        if (getString(key) == null) {
+            setProperty(key, false);
+        }
+        return getBoolean(key, false);
+    }
+
     public boolean isAuthenticatedSkipLoginEnabled() {
         String key = "betaevolutions.authenticated.skiplogin";
         if (getString(key) == null) {
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.task;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.org.whoami.authme.ConsoleLogger;
+import uk.org.whoami.authme.datasource.CacheDataSource;
+import uk.org.whoami.authme.datasource.ChangeLog;
+
+/**
+ * Polls the change log of a shared backend and evicts the accounts that
+ * other servers changed from the local cache. Runs as an async task.
+ *
+ * Ids that are skipped while reading belong to changes that may not have
+ * committed yet. They are asked for again on every run until they show up
+ * or GAP_TIMEOUT has passed, which is longer than any write may take.
+ *
+ * Clearing the cache after an outage or too many gaps may also have missed
+ * registrations, so the Bloom filter of the cache is rebuilt too. That
+ * happens later and at a limited rate, it is not needed for a clear that
+ * a purge asked for.
+ */
+public class CacheInvalidationTask implements Runnable {
+
+    private static final long GAP_TIMEOUT = 30000;
+    private static final int MAX_GAPS = 500;
+    private ChangeLog changes;
+    private CacheDataSource cache;
+    private long lastChange;
+    private int step;
+    private boolean missed;
+    private Map<Long, Long> gaps = new LinkedHashMap<Long, Long>();
+
+    public CacheInvalidationTask(ChangeLog changes, CacheDataSource cache) {
+        this.changes = changes;
+        this.cache = cache;
+        this.step = Math.max(1, changes.getIdIncrement());
+        this.lastChange = changes.getLatestChange();
+        this.missed = lastChange < 0;
+    }
+
+    @Override
+    public synchronized void run() {
+        if (missed) {
+            // Changes may have been missed while the log was unreachable
+            long latest = changes.getLatestChange();
+            if (latest < 0) {
+                return;
+            }
+            cache.invalidateAll();
+            cache.namesMissed();
+            lastChange = latest;
+            gaps.clear();
+            missed = false;
+            ConsoleLogger.info("Change log reachable again, cache cleared");
+            return;
+        }
+
+        List<Long> ids = new ArrayList<Long>();
+        List<String> names = new ArrayList<String>();
+        if (!changes.readChanges(lastChange, gaps.keySet(), ids, names)) {
+            missed = true;
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Long> expired = gaps.values().iterator();
+        while (expired.hasNext()) {
+            if (expired.next() <= now) {
+                expired.remove();
+            }
+        }
+        boolean overflow = false;
+        for (long id : ids) {
+            gaps.remove(id);
+            for (long gap = lastChange + step; gap < id; gap += step) {
+                if (gaps.size() == MAX_GAPS) {
+                    overflow = true;
+                    break;
+                }
+                gaps.put(gap, now + GAP_TIMEOUT);
+            }
+            lastChange = Math.max(lastChange, id);
+        }
+        if (overflow) {
+            // Too many open ids to keep asking for, start over from here
+            cache.invalidateAll();
+            cache.namesMissed();
+            gaps.clear();
+            return;
+        }
+
+        for (String name : names) {
+            if (ChangeLog.ALL.equals(name)) {
+                cache.invalidateAll();
+                return;
+            }
+            cache.invalidate(name);
+        }
+        cache.loadMissingNames();
+    }
+}
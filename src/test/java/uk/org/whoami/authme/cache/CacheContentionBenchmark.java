@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.cache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.PlayerInventory;
+
+import uk.org.whoami.authme.cache.auth.PlayerAuth;
+import uk.org.whoami.authme.cache.auth.PlayerCache;
+import uk.org.whoami.authme.cache.limbo.LimboCache;
+import uk.org.whoami.authme.datasource.CacheDataSource;
+import uk.org.whoami.authme.datasource.DataSource;
+
+/**
+ * Measures read throughput of PlayerCache, LimboCache and CacheDataSource
+ * with one to eight threads reading at once, while one more thread keeps
+ * writing. Reads are lock-free, so throughput should grow with the thread
+ * count up to the number of cores. A read that misses an entry the writer
+ * is only replacing fails the run.
+ *
+ * <p>Not a unit test; run the main method from the test classpath.
+ */
+public final class CacheContentionBenchmark {
+
+    private static final int PLAYERS = 1000;
+    private static final long RUN_TIME = 1000;
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+
+    public static void main(String[] args) throws InterruptedException {
+        final String[] names = new String[PLAYERS];
+        final Player[] players = new Player[PLAYERS];
+        final PlayerCache playerCache = PlayerCache.getInstance();
+        final LimboCache limboCache = LimboCache.getInstance();
+        final CacheDataSource dataCache = new CacheDataSource(new MapDataSource(), PLAYERS * 2, 0, 0);
+        for (int i = 0; i < PLAYERS; i++) {
+            names[i] = "player" + i;
+            players[i] = player(names[i], i);
+            PlayerAuth auth = new PlayerAuth(names[i], "hash", "127.0.0.1", i);
+            playerCache.addPlayer(auth);
+            limboCache.addLimboPlayer(players[i]);
+            dataCache.saveAuth(auth);
+        }
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+
+        run("PlayerCache.getAuth", new Operation() {
+
+            @Override
+            public boolean read(int i) {
+                return playerCache.getAuth(names[i]) != null;
+            }
+
+            @Override
+            public void write(int i) {
+                playerCache.updatePlayer(new PlayerAuth(names[i], "hash", "127.0.0.1", i));
+            }
+        });
+        run("LimboCache.getLimboPlayer", new Operation() {
+
+            @Override
+            public boolean read(int i) {
+                return limboCache.getLimboPlayer(players[i]) != null && limboCache.hasLimboPlayer(names[i]);
+            }
+
+            @Override
+            public void write(int i) {
+                limboCache.addLimboPlayer(players[i]);
+            }
+        });
+        run("CacheDataSource.getAuth", new Operation() {
+
+            @Override
+            public boolean read(int i) {
+                return dataCache.getAuth(names[i]) != null;
+            }
+
+            @Override
+            public void write(int i) {
+                dataCache.updateSession(new PlayerAuth(names[i], "hash", "127.0.0.1", i));
+            }
+        });
+        System.exit(0);
+    }
+
+    private static void run(String name, final Operation op) throws InterruptedException {
+        long base = 0;
+        for (int threads : THREADS) {
+            long reads = measure(threads, op);
+            long perSecond = reads * 1000 / RUN_TIME;
+            if (base == 0) {
+                base = perSecond;
+            }
+            System.out.println(String.format("%-26s %d threads: %,12d reads/s  %.1fx", name, threads, perSecond,
+                    (double) perSecond / base));
+        }
+    }
+
+    private static long measure(int threads, final Operation op) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong reads = new AtomicLong();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        final long[] deadline = new long[1];
+        final List<Thread> started = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    await(start);
+                    int i = seed * 7919 % PLAYERS;
+                    long count = 0;
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        for (int n = 0; n < 1024; n++) {
+                            if (!op.read(i)) {
+                                failure.compareAndSet(null, new IllegalStateException("Missing entry " + i));
+                                return;
+                            }
+                            i = i + 1 == PLAYERS ? 0 : i + 1;
+                        }
+                        count += 1024;
+                    }
+                    reads.addAndGet(count);
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+        Thread writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                await(start);
+                int i = 0;
+                while (System.currentTimeMillis() < deadline[0]) {
+                    op.write(i);
+                    i = i + 1 == PLAYERS ? 0 : i + 1;
+                    if (i == 0) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        writer.start();
+
+        deadline[0] = System.currentTimeMillis() + RUN_TIME;
+        start.countDown();
+        for (Thread thread : started) {
+            thread.join();
+        }
+        writer.join();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return reads.get();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Answers just what LimboCache asks of a joining player
+    private static Player player(final String name, final int entityId) {
+        final PlayerInventory inventory = (PlayerInventory) Proxy.newProxyInstance(
+                CacheContentionBenchmark.class.getClassLoader(), new Class<?>[] { PlayerInventory.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+        return (Player) Proxy.newProxyInstance(CacheContentionBenchmark.class.getClassLoader(),
+                new Class<?>[] { Player.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getName")) {
+                            return name;
+                        } else if (method.getName().equals("getEntityId")) {
+                            return entityId;
+                        } else if (method.getName().equals("getInventory")) {
+                            return inventory;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private interface Operation {
+
+        boolean read(int i);
+
+        void write(int i);
+    }
+
+    private static class MapDataSource implements DataSource {
+
+        private final ConcurrentHashMap<String, PlayerAuth> auths = new ConcurrentHashMap<String, PlayerAuth>();
+
+        @Override
+        public boolean isAuthAvailable(String user) {
+            return auths.containsKey(user.toLowerCase());
+        }
+
+        @Override
+        public PlayerAuth getAuth(String user) {
+            return auths.get(user.toLowerCase());
+        }
+
+        @Override
+        public boolean saveAuth(PlayerAuth auth) {
+            auths.put(auth.getNickname().toLowerCase(), auth);
+            return true;
+        }
+
+        @Override
+        public SaveResult saveAuthIfAbsent(PlayerAuth auth) {
+            return auths.putIfAbsent(auth.getNickname().toLowerCase(), auth) == null ? SaveResult.SAVED : SaveResult.DUPLICATE;
+        }
+
+        @Override
+        public boolean updateSession(PlayerAuth auth) {
+            return saveAuth(auth);
+        }
+
+        @Override
+        public boolean updatePassword(PlayerAuth auth) {
+            return saveAuth(auth);
+        }
+
+        @Override
+        public int purgeDatabase(long until, PurgeProgress progress) {
+            return 0;
+        }
+
+        @Override
+        public boolean removeAuth(String user) {
+            auths.remove(user.toLowerCase());
+            return true;
+        }
+
+        @Override
+        public boolean getAllNames(Collection<String> names) {
+            for (PlayerAuth auth : auths.values()) {
+                names.add(auth.getNickname());
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void reload() {
+        }
+    }
+}
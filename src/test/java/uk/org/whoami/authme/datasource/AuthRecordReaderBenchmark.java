@@ -0,0 +1,198 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.datasource;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.org.whoami.authme.cache.auth.PlayerAuth;
+
+/**
+ * Compares {@link AuthRecordReader} with the readLine() and split(":") path
+ * it replaced, on a synthetic auths.db of one million accounts. Each round
+ * is timed for stepping through the file only, and for loading every
+ * account into a map the way FileDataSource does.
+ *
+ * <p>Not a unit test; run the main method from the test classpath, with an
+ * optional line count as the only argument.
+ */
+public final class AuthRecordReaderBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        File file = File.createTempFile("auths", ".db");
+        file.deleteOnExit();
+        write(file, lines);
+        System.out.println("auths.db with " + lines + " lines, " + (file.length() >> 20) + " MiB");
+
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean warmup = round < ROUNDS - 1;
+            measure("split  scan", warmup, new Round() {
+
+                @Override
+                public int run(File file) throws IOException {
+                    return scanSplit(file);
+                }
+            }, file);
+            measure("reader scan", warmup, new Round() {
+
+                @Override
+                public int run(File file) throws IOException {
+                    return scanReader(file);
+                }
+            }, file);
+            measure("split  load", warmup, new Round() {
+
+                @Override
+                public int run(File file) throws IOException {
+                    return loadSplit(file).size();
+                }
+            }, file);
+            measure("reader load", warmup, new Round() {
+
+                @Override
+                public int run(File file) throws IOException {
+                    return loadReader(file).size();
+                }
+            }, file);
+        }
+
+        Map<String, PlayerAuth> expected = loadSplit(file);
+        Map<String, PlayerAuth> actual = loadReader(file);
+        for (PlayerAuth auth : expected.values()) {
+            PlayerAuth other = actual.get(auth.getNickname().toLowerCase());
+            if (other == null || !other.getHash().equals(auth.getHash()) || !other.getIp().equals(auth.getIp())
+                    || other.getLastLogin() != auth.getLastLogin()) {
+                throw new IllegalStateException("Parsers disagree on " + auth.getNickname());
+            }
+        }
+        if (expected.size() != actual.size()) {
+            throw new IllegalStateException("Parsers disagree on the account count");
+        }
+    }
+
+    private static void write(File file, int lines) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            for (int i = 0; i < lines; i++) {
+                out.write("Player" + i + ":$SHA$" + Long.toHexString(i * 0x9E3779B97F4A7C15L) + "$"
+                        + Integer.toHexString(i) + "0123456789abcdef0123456789abcdef:10.0." + (i >> 8 & 255) + "."
+                        + (i & 255) + ":" + (1300000000000L + i) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void measure(String name, boolean warmup, Round round, File file) throws IOException {
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        int result = round.run(file);
+        long elapsed = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        if (!warmup) {
+            System.out.println(String.format("%s: %6d ms, %7d MiB allocated, %d records", name,
+                    elapsed / 1000000, allocated >> 20, result));
+        }
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static int scanSplit(File file) throws IOException {
+        int records = 0;
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.split(":").length == 4) {
+                    records++;
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return records;
+    }
+
+    private static int scanReader(File file) throws IOException {
+        int records = 0;
+        AuthRecordReader reader = new AuthRecordReader(new FileReader(file));
+        try {
+            while (reader.next()) {
+                if (!reader.isTombstone()) {
+                    records++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private static Map<String, PlayerAuth> loadSplit(File file) throws IOException {
+        Map<String, PlayerAuth> loaded = new HashMap<String, PlayerAuth>();
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] args = line.split(":");
+                if (args.length == 4) {
+                    loaded.put(args[0].toLowerCase(), new PlayerAuth(args[0], args[1], args[2], Long.parseLong(args[3])));
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return loaded;
+    }
+
+    private static Map<String, PlayerAuth> loadReader(File file) throws IOException {
+        Map<String, PlayerAuth> loaded = new HashMap<String, PlayerAuth>();
+        AuthRecordReader reader = new AuthRecordReader(new FileReader(file));
+        try {
+            while (reader.next()) {
+                PlayerAuth auth = reader.toAuth();
+                if (auth != null) {
+                    loaded.put(auth.getNickname().toLowerCase(), auth);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return loaded;
+    }
+
+    private interface Round {
+
+        int run(File file) throws IOException;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.datasource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.ConnectionPoolDataSource;
+
+import org.h2.api.Trigger;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.whoami.authme.cache.auth.PlayerAuth;
+import uk.org.whoami.authme.datasource.DataSource.SaveResult;
+import uk.org.whoami.authme.settings.Settings;
+
+/**
+ * Runs MySQLDataSource from several threads at once against an in-memory H2
+ * database in MySQL mode, which stands in for the server.
+ */
+public class MySQLDataSourceTest {
+
+    private static final int THREADS = 8;
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private JdbcDataSource h2;
+    private MySQLDataSource data;
+
+    @Before
+    public void setUp() throws Exception {
+        Settings s = Settings.getInstance();
+        s.setProperty("DataSource.mySQLMaxConnections", THREADS);
+        s.setProperty("DataSource.mySQLMinIdle", 0);
+        s.setProperty("DataSource.mySQLSessionBatchInterval", 0);
+
+        h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:authme" + databases.incrementAndGet() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        data = new MySQLDataSource() {
+
+            @Override
+            ConnectionPoolDataSource createDataSource(String host, String port) {
+                return h2;
+            }
+        };
+        SlowQuery.delay = 0;
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        if (data != null) {
+            data.close();
+        }
+        Connection con = h2.getConnection();
+        try {
+            con.createStatement().execute("SHUTDOWN");
+        } finally {
+            con.close();
+        }
+    }
+
+    @Test
+    public void concurrentWritesKeepEveryAccountConsistent() throws Exception {
+        final int accounts = 50;
+        final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+        run(THREADS, new Worker() {
+
+            @Override
+            public void work(int thread) {
+                for (int i = 0; i < accounts; i++) {
+                    String name = "player" + thread + "_" + i;
+                    if (!data.saveAuth(new PlayerAuth(name, "hash1", "127.0.0.1", 1))) {
+                        failures.add("save " + name);
+                        continue;
+                    }
+                    if (!data.updatePassword(new PlayerAuth(name, "hash2", "127.0.0.1", 1))) {
+                        failures.add("password " + name);
+                    }
+                    if (!data.updateSession(new PlayerAuth(name, "hash2", "10.0.0." + thread, 2))) {
+                        failures.add("session " + name);
+                    }
+                    PlayerAuth auth = data.getAuth(name);
+                    if (auth == null || !"hash2".equals(auth.getHash()) || !("10.0.0." + thread).equals(auth.getIp())
+                            || auth.getLastLogin() != 2) {
+                        failures.add("read " + name);
+                    }
+                    if (i % 2 == 0 && !data.removeAuth(name)) {
+                        failures.add("remove " + name);
+                    }
+                }
+            }
+        });
+        assertTrue(failures.toString(), failures.isEmpty());
+
+        for (int thread = 0; thread < THREADS; thread++) {
+            for (int i = 0; i < accounts; i++) {
+                String name = "player" + thread + "_" + i;
+                if (i % 2 == 0) {
+                    assertNull(name, data.getAuth(name));
+                } else {
+                    assertEquals(name, "hash2", data.getAuth(name).getHash());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void concurrentRegistrationsOfOneNameSaveOnce() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final String name = "contended" + round;
+            final AtomicInteger saved = new AtomicInteger();
+            run(THREADS, new Worker() {
+
+                @Override
+                public void work(int thread) {
+                    if (data.saveAuthIfAbsent(new PlayerAuth(name, "hash" + thread, "127.0.0.1", 0)) == SaveResult.SAVED) {
+                        saved.incrementAndGet();
+                    }
+                }
+            });
+            assertEquals(name, 1, saved.get());
+            assertNotNull(name, data.getAuth(name));
+        }
+    }
+
+    /**
+     * Every lookup is held up for a while on the server side. Lookups that
+     * share one lock take that long one after the other; on the pool they
+     * overlap, so throughput grows with the number of threads.
+     */
+    @Test
+    public void lookupThroughputScalesWithThreads() throws Exception {
+        for (int i = 0; i < THREADS; i++) {
+            assertTrue(data.saveAuth(new PlayerAuth("reader" + i, "hash", "127.0.0.1", 0)));
+        }
+        Connection con = h2.getConnection();
+        try {
+            Statement st = con.createStatement();
+            st.execute("CREATE TRIGGER authme_slow BEFORE SELECT ON authme CALL \"" + SlowQuery.class.getName() + "\"");
+            st.close();
+        } finally {
+            con.close();
+        }
+        SlowQuery.delay = 10;
+        SlowQuery.peak.set(0);
+
+        final int lookups = 40;
+        double single = lookupsPerSecond(1, lookups);
+        double parallel = lookupsPerSecond(THREADS, lookups);
+        System.out.println(String.format("MySQLDataSource lookups: %.0f/s on 1 thread, %.0f/s on %d threads, %d at once",
+                single, parallel, THREADS, SlowQuery.peak.get()));
+        assertTrue("lookups never overlapped", SlowQuery.peak.get() > 1);
+        assertTrue("no speedup from " + THREADS + " threads", parallel > single * 2);
+    }
+
+    private double lookupsPerSecond(int threads, final int lookups) throws Exception {
+        final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+        long start = System.nanoTime();
+        run(threads, new Worker() {
+
+            @Override
+            public void work(int thread) {
+                for (int i = 0; i < lookups; i++) {
+                    if (data.getAuth("reader" + thread) == null) {
+                        failures.add("reader" + thread);
+                    }
+                }
+            }
+        });
+        long elapsed = System.nanoTime() - start;
+        assertTrue(failures.toString(), failures.isEmpty());
+        return threads * lookups * 1e9 / elapsed;
+    }
+
+    // Starts all workers at once and rethrows the first error
+    private void run(int threads, final Worker worker) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Queue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> started = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        worker.work(thread);
+                    } catch (Throwable ex) {
+                        errors.add(ex);
+                    }
+                }
+            });
+            t.start();
+            started.add(t);
+        }
+        start.countDown();
+        for (Thread t : started) {
+            t.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.peek());
+        }
+    }
+
+    private interface Worker {
+
+        void work(int thread) throws Exception;
+    }
+
+    /**
+     * Adds server-side latency to every query on the table and records how
+     * many ran at the same time.
+     */
+    public static class SlowQuery implements Trigger {
+
+        static volatile long delay;
+        static final AtomicInteger peak = new AtomicInteger();
+        private static final AtomicInteger running = new AtomicInteger();
+
+        @Override
+        public void init(Connection con, String schema, String trigger, String table, boolean before, int type) {
+        }
+
+        @Override
+        public void fire(Connection con, Object[] oldRow, Object[] newRow) throws SQLException {
+            int now = running.incrementAndGet();
+            try {
+                int max;
+                while (now > (max = peak.get()) && !peak.compareAndSet(max, now)) {
+                }
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void remove() {
+        }
+    }
+}
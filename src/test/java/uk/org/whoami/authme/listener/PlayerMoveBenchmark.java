@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011 Sebastian Köhler <sebkoehler@whoami.org.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.whoami.authme.listener;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.inventory.PlayerInventory;
+
+import uk.org.whoami.authme.cache.auth.AuthState;
+import uk.org.whoami.authme.cache.auth.AuthStateCache;
+import uk.org.whoami.authme.cache.limbo.LimboCache;
+import uk.org.whoami.authme.settings.Settings;
+
+/**
+ * Measures what AuthMePlayerListener.onPlayerMove costs per event for the
+ * common kinds of movement packets. Each round builds a fresh event, so the
+ * cost of building one is measured on its own and subtracted.
+ *
+ * <p>Not a unit test; run the main method from the test classpath. The
+ * listener loads the messages, which writes plugins/AuthMe/messages.yml
+ * below the working directory, so run it from a scratch directory.
+ */
+public final class PlayerMoveBenchmark {
+
+    private static final int EVENTS = 5000000;
+    private static final int ROUNDS = 5;
+    private static final int RADIUS = 100;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        Settings settings = Settings.getInstance();
+        settings.setProperty("settings.restrictions.allowMovement", true);
+        settings.setProperty("settings.restrictions.allowedMovementRadius", RADIUS);
+
+        final World world = world(new Location(null, 0, 64, 0));
+        final AuthMePlayerListener listener = new AuthMePlayerListener(null, null, null);
+        final Player authenticated = join(1, world, AuthState.AUTHENTICATED);
+        final Player login = join(2, world, AuthState.MUST_LOGIN);
+        final Player register = join(3, world, AuthState.MUST_REGISTER);
+        final Location here = new Location(world, 0.5, 64, 0.5, 0, 0);
+        final Location turned = new Location(world, 0.5, 64, 0.5, 90, 10);
+        final Location step = new Location(world, 0.7, 64, 0.5, 0, 0);
+        final Location outside = new Location(world, RADIUS + 0.7, 64, 0.5, 0, 0);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean warmup = round < ROUNDS - 1;
+            long floor = measure(null, warmup, new Move() {
+
+                @Override
+                public void move(int i) {
+                    sink = new PlayerMoveEvent(login, here, step);
+                }
+            }, 0);
+            measure("logged in, walking", warmup, new Move() {
+
+                @Override
+                public void move(int i) {
+                    listener.onPlayerMove(new PlayerMoveEvent(authenticated, here, step));
+                }
+            }, floor);
+            measure("must log in, turning", warmup, new Move() {
+
+                @Override
+                public void move(int i) {
+                    listener.onPlayerMove(new PlayerMoveEvent(login, here, turned));
+                }
+            }, floor);
+            measure("must log in, walking", warmup, new Move() {
+
+                @Override
+                public void move(int i) {
+                    listener.onPlayerMove(new PlayerMoveEvent(login, here, step));
+                }
+            }, floor);
+            measure("must register, in radius", warmup, new Move() {
+
+                @Override
+                public void move(int i) {
+                    listener.onPlayerMove(new PlayerMoveEvent(register, here, step));
+                }
+            }, floor);
+            measure("must register, leaving", warmup, new Move() {
+
+                @Override
+                public void move(int i) {
+                    listener.onPlayerMove(new PlayerMoveEvent(register, here, outside));
+                }
+            }, floor);
+        }
+    }
+
+    private static long measure(String name, boolean warmup, Move move, long floor) {
+        long start = System.nanoTime();
+        for (int i = 0; i < EVENTS; i++) {
+            move.move(i);
+        }
+        long perEvent = (System.nanoTime() - start) * 1000 / EVENTS;
+        if (!warmup) {
+            if (name == null) {
+                System.out.println(String.format("%-26s %6.1f ns", "building the event", perEvent / 1000.0));
+            } else {
+                System.out.println(String.format("%-26s %6.1f ns", name, Math.max(0, perEvent - floor) / 1000.0));
+            }
+        }
+        return perEvent;
+    }
+
+    private static Player join(int entityId, World world, AuthState state) {
+        Player player = player("player" + entityId, entityId, new Location(world, 0.5, 64, 0.5));
+        AuthStateCache.getInstance().setState(player, state);
+        if (state.isRestricted()) {
+            LimboCache.getInstance().addLimboPlayer(player);
+        }
+        return player;
+    }
+
+    private static World world(final Location spawn) {
+        return (World) Proxy.newProxyInstance(PlayerMoveBenchmark.class.getClassLoader(), new Class<?>[] { World.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getSpawnLocation")) {
+                            return new Location((World) proxy, spawn.getX(), spawn.getY(), spawn.getZ());
+                        } else if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    // Answers just what the listener and LimboCache ask of a player
+    private static Player player(final String name, final int entityId, final Location location) {
+        final PlayerInventory inventory = (PlayerInventory) Proxy.newProxyInstance(
+                PlayerMoveBenchmark.class.getClassLoader(), new Class<?>[] { PlayerInventory.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+        return (Player) Proxy.newProxyInstance(PlayerMoveBenchmark.class.getClassLoader(),
+                new Class<?>[] { Player.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getName")) {
+                            return name;
+                        } else if (method.getName().equals("getEntityId")) {
+                            return entityId;
+                        } else if (method.getName().equals("getLocation")) {
+                            return location;
+                        } else if (method.getName().equals("getWorld")) {
+                            return location.getWorld();
+                        } else if (method.getName().equals("getInventory")) {
+                            return inventory;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private interface Move {
+
+        void move(int i);
+    }
+}